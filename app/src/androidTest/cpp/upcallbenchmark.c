@@ -0,0 +1,144 @@
+/*
+ * DroidVNC-NG upcall benchmark, only built for the instrumented tests.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2020 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#include <jni.h>
+#include <pthread.h>
+#include <time.h>
+#include <android/log.h>
+
+#define TAG "upcallbenchmark"
+
+static JavaVM *theVM;
+static pthread_key_t theAttachedThreadKey;
+
+/* Arguments and results of measureUpcalls() */
+typedef struct {
+    jclass target;
+    jmethodID method;
+    int count;
+    jlong nanos[2];
+} upcallMeasurement;
+
+static jlong getNanos(void)
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (jlong) ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+/*
+ * Destructor of theAttachedThreadKey, run when a thread we attached exits.
+ */
+static void detachThread(__unused void *env)
+{
+    (*theVM)->DetachCurrentThread(theVM);
+}
+
+/*
+ * Same as getAttachedEnv() in droidvnc-ng.c: attach once and stay attached until the thread exits.
+ */
+static JNIEnv *getAttachedEnv(void)
+{
+    JNIEnv *env = NULL;
+    if ((*theVM)->GetEnv(theVM, (void **) &env, JNI_VERSION_1_6) == JNI_OK)
+        return env;
+
+    if ((*theVM)->AttachCurrentThread(theVM, &env, NULL) != 0)
+        return NULL;
+
+    pthread_setspecific(theAttachedThreadKey, env);
+    return env;
+}
+
+/*
+ * Call the measurement's target count times from a native thread, first the way input events used
+ * to do it, attaching, looking up the method and detaching per call, then the way LibVNCServer's
+ * threads do it now, staying attached and using the method ID cached beforehand.
+ */
+static void *measureUpcalls(void *arg)
+{
+    upcallMeasurement *m = arg;
+    JNIEnv *env = NULL;
+
+    jlong t0 = getNanos();
+    for (int i = 0; i < m->count; i++) {
+        if ((*theVM)->AttachCurrentThread(theVM, &env, NULL) != 0)
+            return NULL;
+        jmethodID method = (*env)->GetStaticMethodID(env, m->target, "onUpcall", "()V");
+        (*env)->CallStaticVoidMethod(env, m->target, method);
+        (*theVM)->DetachCurrentThread(theVM);
+    }
+    m->nanos[0] = (getNanos() - t0) / m->count;
+
+    t0 = getNanos();
+    for (int i = 0; i < m->count; i++) {
+        env = getAttachedEnv();
+        if (!env)
+            return NULL;
+        (*env)->CallStaticVoidMethod(env, m->target, m->method);
+    }
+    m->nanos[1] = (getNanos() - t0) / m->count;
+
+    return NULL;
+}
+
+JNIEXPORT jint JNI_OnLoad(JavaVM *vm, void __unused * reserved) {
+    theVM = vm;
+    pthread_key_create(&theAttachedThreadKey, detachThread);
+    return JNI_VERSION_1_6;
+}
+
+/*
+ * The given class has to have a static void onUpcall() method, which gets called 2 * count times.
+ * Returns nanoseconds per call when attaching per call and when staying attached, or NULL on failure.
+ */
+JNIEXPORT jlongArray JNICALL
+Java_net_christianbeier_droidvnc_1ng_UpcallBenchmarkTest_measureUpcalls(JNIEnv *env,
+                                                                        __unused jclass clazz,
+                                                                        jclass target,
+                                                                        jint count) {
+    pthread_t thread;
+    upcallMeasurement m = { .count = count };
+
+    if (count <= 0)
+        return NULL;
+
+    m.method = (*env)->GetStaticMethodID(env, target, "onUpcall", "()V");
+    if (!m.method)
+        return NULL;
+    m.target = (*env)->NewGlobalRef(env, target);
+
+    if (pthread_create(&thread, NULL, measureUpcalls, &m) != 0) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "measureUpcalls: could not create thread");
+        (*env)->DeleteGlobalRef(env, m.target);
+        return NULL;
+    }
+    pthread_join(thread, NULL);
+    (*env)->DeleteGlobalRef(env, m.target);
+
+    if (!m.nanos[0] || !m.nanos[1])
+        return NULL;
+
+    jlongArray result = (*env)->NewLongArray(env, 2);
+    if (result)
+        (*env)->SetLongArrayRegion(env, result, 0, 2, m.nanos);
+    return result;
+}
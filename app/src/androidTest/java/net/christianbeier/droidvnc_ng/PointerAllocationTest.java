@@ -0,0 +1,97 @@
+package net.christianbeier.droidvnc_ng;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that pointer motion during a drag only allocates for the gestures it dispatches, not per
+ * move. Needs InputService to be enabled as an accessibility service on the device, skipped otherwise.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PointerAllocationTest {
+
+    private static final long CLIENT = 0x7e57;
+    private static final int WARM_UP_GESTURES = 5;
+    private static final int GESTURES = 50;
+    // moves coalesced into each gesture, these must not allocate
+    private static final int MOVES_PER_GESTURE = 20;
+    // well past the default coalescing window of one display frame and the flush that follows it,
+    // so the first move after it dispatches a gesture on the calling thread
+    private static final int GESTURE_INTERVAL_MS = 100;
+    // StrokeDescription, GestureDescription and its conversion into gesture steps for the binder call
+    private static final int ALLOCATIONS_PER_GESTURE = 300;
+
+    private float mScaling;
+    private int mPointerCoalesceMs;
+    private boolean mIsInputEnabled;
+    private boolean mIsClientAdded;
+
+    @Before
+    public void setUp() {
+        assumeTrue("InputService is not enabled", InputService.isConnected());
+        // older API levels dispatch the whole stroke at the end only
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O);
+
+        mScaling = InputService.scaling;
+        mPointerCoalesceMs = InputService.pointerCoalesceMs;
+        mIsInputEnabled = InputService.isInputEnabled;
+        InputService.scaling = 1;
+        // the default of one display frame
+        InputService.pointerCoalesceMs = -1;
+        InputService.isInputEnabled = true;
+        InputService.addClient(CLIENT, false);
+        mIsClientAdded = true;
+    }
+
+    @After
+    public void tearDown() {
+        // also run when an assumption in setUp() failed
+        if (!mIsClientAdded)
+            return;
+        // release the button so no stroke is left dangling on the screen
+        InputService.onPointerEvent(0, 10, 10, CLIENT);
+        InputService.removeClient(CLIENT);
+        InputService.scaling = mScaling;
+        InputService.pointerCoalesceMs = mPointerCoalesceMs;
+        InputService.isInputEnabled = mIsInputEnabled;
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void dragMotionStaysWithinAllocationBudgetPerGesture() {
+        InputService.onPointerEvent(1, 10, 10, CLIENT);
+        for (int i = 0; i < WARM_UP_GESTURES; i++)
+            drag(i);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < GESTURES; i++)
+            drag(i);
+        Debug.stopAllocCounting();
+
+        int allocations = Debug.getThreadAllocCount();
+        assertTrue(allocations + " allocations for " + GESTURES + " gestures of " + MOVES_PER_GESTURE + " drag moves each",
+                allocations <= GESTURES * ALLOCATIONS_PER_GESTURE);
+    }
+
+    /**
+     * Waits for the coalescing window to pass, then sends one move that gets dispatched as a
+     * gesture right away, followed by moves that get coalesced into the next one.
+     */
+    private static void drag(int gesture) {
+        SystemClock.sleep(GESTURE_INTERVAL_MS);
+        for (int i = 0; i < MOVES_PER_GESTURE; i++)
+            InputService.onPointerEvent(1, 10 + gesture % 100, 10 + i, CLIENT);
+    }
+}
@@ -0,0 +1,53 @@
+package net.christianbeier.droidvnc_ng;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures calling into Java from a native thread, like LibVNCServer's threads do for client
+ * events, per call: attaching, looking up the method and detaching every time versus staying
+ * attached with the method ID cached. Timings are logged with tag UpcallBenchmarkTest, they are
+ * not asserted on as wall-clock times vary too much between devices and runs.
+ */
+@RunWith(AndroidJUnit4.class)
+public class UpcallBenchmarkTest {
+
+    private static final String TAG = "UpcallBenchmarkTest";
+    private static final int UPCALLS = 10000;
+
+    // incremented from the native measuring thread
+    private static final AtomicInteger sUpcallCount = new AtomicInteger();
+
+    static {
+        System.loadLibrary("upcallbenchmark");
+    }
+
+    private static native long[] measureUpcalls(Class<?> target, int count);
+
+    // called from native code
+    @SuppressWarnings("unused")
+    static void onUpcall() {
+        sUpcallCount.incrementAndGet();
+    }
+
+    @Test
+    public void measureAttachedVersusPerCallUpcalls() {
+        // warm up
+        assertNotNull(measureUpcalls(UpcallBenchmarkTest.class, UPCALLS / 10));
+
+        sUpcallCount.set(0);
+        long[] nanos = measureUpcalls(UpcallBenchmarkTest.class, UPCALLS);
+
+        assertNotNull(nanos);
+        assertEquals(2 * UPCALLS, sUpcallCount.get());
+        Log.i(TAG, "per upcall: attach per call " + nanos[0] + " ns, attached with cached method ID " + nanos[1] + " ns");
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * DroidVNC-NG ContinuousUpdates and Fence protocol extension.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2020 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include <sys/param.h>
+#include <arpa/inet.h>
+#include "continuousupdates.h"
+
+/* Pseudo-encodings and message types as per the RFB community protocol specification */
+#define ENCODING_CONTINUOUS_UPDATES (-313)
+#define ENCODING_FENCE (-312)
+#define MSG_CONTINUOUS_UPDATES 150
+#define MSG_FENCE 248
+
+#define FENCE_BLOCK_BEFORE (1u << 0)
+#define FENCE_BLOCK_AFTER (1u << 1)
+#define FENCE_SYNC_NEXT (1u << 2)
+#define FENCE_REQUEST (1u << 31)
+#define FENCE_MAX_PAYLOAD 64
+
+/* Number of pushed updates that may be unconfirmed by a fence response before pushing pauses */
+#define FENCE_WINDOW 4
+
+/* Per-client state, guarded by the client's updateMutex */
+typedef struct {
+    rfbBool supportsContinuousUpdates;
+    rfbBool supportsFence;
+    rfbBool enabled;
+    /* Area to push updates for, in screen coordinates */
+    int x1, y1, x2, y2;
+    /* Fences we sent that were not answered yet */
+    int fencesOutstanding;
+} continuousUpdatesState;
+
+static int pseudoEncodings[] = { ENCODING_CONTINUOUS_UPDATES, ENCODING_FENCE, 0 };
+
+static rfbBool onNewClient(rfbClientPtr cl, void **data);
+static rfbBool onEnablePseudoEncoding(rfbClientPtr cl, void **data, int encoding);
+static rfbBool onMessage(rfbClientPtr cl, void *data, const rfbClientToServerMsg *message);
+static void onClose(rfbClientPtr cl, void *data);
+
+static rfbProtocolExtension extension = {
+        .newClient = onNewClient,
+        .pseudoEncodings = pseudoEncodings,
+        .enablePseudoEncoding = onEnablePseudoEncoding,
+        .handleMessage = onMessage,
+        .close = onClose,
+};
+
+/*
+ * Write to the client, closing it on failure. The caller has to hold the client's sendMutex.
+ */
+static rfbBool writeToClient(rfbClientPtr cl, const char *buf, int len)
+{
+    if (rfbWriteExact(cl, buf, len) < 0) {
+        rfbLogPerror("continuousUpdates: write");
+        rfbCloseClient(cl);
+        return FALSE;
+    }
+    return TRUE;
+}
+
+static rfbBool sendFence(rfbClientPtr cl, uint32_t flags, uint8_t length, const char *payload)
+{
+    char buf[9 + FENCE_MAX_PAYLOAD] = { MSG_FENCE };
+    uint32_t netFlags = htonl(flags);
+    memcpy(buf + 4, &netFlags, 4);
+    buf[8] = (char)length;
+    if (length)
+        memcpy(buf + 9, payload, length);
+    return writeToClient(cl, buf, 9 + length);
+}
+
+static rfbBool sendEndOfContinuousUpdates(rfbClientPtr cl)
+{
+    char msg = (char)MSG_CONTINUOUS_UPDATES;
+    return writeToClient(cl, &msg, 1);
+}
+
+/*
+ * Add the continuous area to the client's requested region if the fence window allows,
+ * waking up its output thread.
+ */
+static void requestUpdate(rfbClientPtr cl, continuousUpdatesState *state)
+{
+    LOCK(cl->updateMutex);
+    if (state->enabled && (!state->supportsFence || state->fencesOutstanding < FENCE_WINDOW)) {
+        sraRegionPtr area = sraRgnCreateRect(state->x1, state->y1, state->x2, state->y2);
+        sraRgnOr(cl->requestedRegion, area);
+        sraRgnDestroy(area);
+        TSIGNAL(cl->updateCond);
+    }
+    UNLOCK(cl->updateMutex);
+}
+
+static rfbBool readFromClient(rfbClientPtr cl, char *buf, int len)
+{
+    int n = rfbReadExact(cl, buf, len);
+    if (n <= 0) {
+        if (n != 0)
+            rfbLogPerror("continuousUpdates: read");
+        rfbCloseClient(cl);
+        return FALSE;
+    }
+    return TRUE;
+}
+
+static void onEnableContinuousUpdates(rfbClientPtr cl, continuousUpdatesState *state)
+{
+    // enable flag, x, y, w, h
+    unsigned char buf[9];
+    if (!readFromClient(cl, (char *)buf, sizeof(buf)))
+        return;
+
+    int x = buf[1] << 8 | buf[2];
+    int y = buf[3] << 8 | buf[4];
+    int w = buf[5] << 8 | buf[6];
+    int h = buf[7] << 8 | buf[8];
+
+    if (!state->supportsContinuousUpdates) {
+        rfbLog("continuousUpdates: client enabled continuous updates without announcing support, ignoring\n");
+        return;
+    }
+
+    if (buf[0]) {
+        // the area is in the client's framebuffer coordinates, which differ for scaled clients
+        rfbScreenInfoPtr screen = cl->screen;
+        rfbScreenInfoPtr scaled = cl->scaledScreen;
+        LOCK(cl->updateMutex);
+        state->x1 = MIN(x * screen->width / scaled->width, screen->width);
+        state->y1 = MIN(y * screen->height / scaled->height, screen->height);
+        state->x2 = MIN((x + w) * screen->width / scaled->width, screen->width);
+        state->y2 = MIN((y + h) * screen->height / scaled->height, screen->height);
+        state->enabled = state->x2 > state->x1 && state->y2 > state->y1;
+        UNLOCK(cl->updateMutex);
+        requestUpdate(cl, state);
+    } else {
+        LOCK(cl->updateMutex);
+        state->enabled = FALSE;
+        UNLOCK(cl->updateMutex);
+        LOCK(cl->sendMutex);
+        sendEndOfContinuousUpdates(cl);
+        UNLOCK(cl->sendMutex);
+    }
+}
+
+static void onFence(rfbClientPtr cl, continuousUpdatesState *state)
+{
+    // padding, flags, payload length
+    unsigned char buf[8];
+    char payload[FENCE_MAX_PAYLOAD];
+    if (!readFromClient(cl, (char *)buf, sizeof(buf)))
+        return;
+
+    uint32_t flags = (uint32_t)buf[3] << 24 | buf[4] << 16 | buf[5] << 8 | buf[6];
+    uint8_t length = buf[7];
+    if (length > FENCE_MAX_PAYLOAD) {
+        rfbLog("continuousUpdates: fence payload too long, closing client\n");
+        rfbCloseClient(cl);
+        return;
+    }
+    if (length && !readFromClient(cl, payload, length))
+        return;
+
+    if (flags & FENCE_REQUEST) {
+        /*
+          Messages are processed in order and the answer is sent right away, so both blocking
+          flags are fulfilled by us. SyncNext is not supported and thus cleared.
+        */
+        LOCK(cl->sendMutex);
+        sendFence(cl, flags & (FENCE_BLOCK_BEFORE | FENCE_BLOCK_AFTER), length, payload);
+        UNLOCK(cl->sendMutex);
+    } else {
+        // answer to one of ours, which the client sends once it received all updates sent before
+        LOCK(cl->updateMutex);
+        if (state->fencesOutstanding > 0)
+            state->fencesOutstanding--;
+        UNLOCK(cl->updateMutex);
+        requestUpdate(cl, state);
+    }
+}
+
+static rfbBool onNewClient(__unused rfbClientPtr cl, void **data)
+{
+    *data = calloc(1, sizeof(continuousUpdatesState));
+    return *data != NULL;
+}
+
+static rfbBool onEnablePseudoEncoding(rfbClientPtr cl, void **data, int encoding)
+{
+    continuousUpdatesState *state = *data;
+
+    if (encoding != ENCODING_CONTINUOUS_UPDATES && encoding != ENCODING_FENCE)
+        return FALSE;
+
+    if (!state) {
+        // extension was not enabled via onNewClient()
+        if (!onNewClient(cl, data))
+            return FALSE;
+        state = *data;
+    }
+
+    /*
+      Clients announce their encodings with every SetEncodings, only answer the first one.
+      This runs on the client's reader thread while its output thread might be sending an update,
+      so the answers are written with sendMutex held, which waits for the update to be done.
+    */
+    LOCK(cl->sendMutex);
+    LOCK(cl->updateMutex);
+    rfbBool answerContinuousUpdates = encoding == ENCODING_CONTINUOUS_UPDATES && !state->supportsContinuousUpdates;
+    rfbBool answerFence = encoding == ENCODING_FENCE && !state->supportsFence;
+    if (answerContinuousUpdates)
+        state->supportsContinuousUpdates = TRUE;
+    if (answerFence) {
+        state->supportsFence = TRUE;
+        state->fencesOutstanding++;
+    }
+    UNLOCK(cl->updateMutex);
+    // tells the client the server supports continuous updates
+    if (answerContinuousUpdates)
+        sendEndOfContinuousUpdates(cl);
+    // tells the client the server supports fences, it answers like to every other one of ours
+    if (answerFence)
+        sendFence(cl, FENCE_REQUEST, 0, NULL);
+    UNLOCK(cl->sendMutex);
+
+    return TRUE;
+}
+
+static rfbBool onMessage(rfbClientPtr cl, void *data, const rfbClientToServerMsg *message)
+{
+    continuousUpdatesState *state = data;
+
+    if (!state)
+        return FALSE;
+
+    switch (message->type) {
+        case MSG_CONTINUOUS_UPDATES:
+            onEnableContinuousUpdates(cl, state);
+            return TRUE;
+        case MSG_FENCE:
+            onFence(cl, state);
+            return TRUE;
+        default:
+            return FALSE;
+    }
+}
+
+static void onClose(__unused rfbClientPtr cl, void *data)
+{
+    free(data);
+}
+
+void continuousUpdatesRegister(void)
+{
+    rfbRegisterProtocolExtension(&extension);
+}
+
+void continuousUpdatesOnUpdateSent(rfbClientPtr cl)
+{
+    continuousUpdatesState *state = rfbGetExtensionClientData(cl, &extension);
+    if (!state)
+        return;
+
+    LOCK(cl->updateMutex);
+    rfbBool enabled = state->enabled;
+    rfbBool withFence = enabled && state->supportsFence;
+    if (withFence)
+        state->fencesOutstanding++;
+    UNLOCK(cl->updateMutex);
+
+    if (!enabled)
+        return;
+
+    // the client answers this once it got the update, so the number of unanswered ones bounds what's in flight
+    if (withFence && !sendFence(cl, FENCE_REQUEST | FENCE_BLOCK_BEFORE, 0, NULL))
+        return;
+
+    requestUpdate(cl, state);
+}
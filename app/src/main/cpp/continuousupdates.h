@@ -0,0 +1,41 @@
+/*
+ * DroidVNC-NG ContinuousUpdates and Fence protocol extension.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2020 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#ifndef DROIDVNC_NG_CONTINUOUSUPDATES_H
+#define DROIDVNC_NG_CONTINUOUSUPDATES_H
+
+#include "rfb/rfb.h"
+
+/*
+ * Register the extension with LibVNCServer, it then gets enabled for every new client.
+ * Viewers announcing the ContinuousUpdates pseudo-encoding can have updates pushed to them
+ * without requesting each one, viewers announcing Fence get these paced by fence round trips.
+ */
+void continuousUpdatesRegister(void);
+
+/*
+ * To be called after an update carrying framebuffer content was sent to the client, with the
+ * client's sendMutex held. Requests the next update on the client's behalf if it has continuous
+ * updates enabled, after a fence that counts against the client's window of updates in flight.
+ */
+void continuousUpdatesOnUpdateSent(rfbClientPtr cl);
+
+#endif //DROIDVNC_NG_CONTINUOUSUPDATES_H
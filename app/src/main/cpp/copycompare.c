@@ -0,0 +1,150 @@
+/*
+ * DroidVNC-NG fused copy-and-compare kernels.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2020 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#include <stdint.h>
+#include <string.h>
+#include "copycompare.h"
+
+#if defined(__arm__)
+#include <sys/auxv.h>
+#ifndef HWCAP_NEON
+#define HWCAP_NEON (1 << 12)
+#endif
+#endif
+#if defined(__x86_64__) || defined(__i386__)
+#include <immintrin.h>
+#endif
+
+copyCompareFunc copyCompare;
+
+/*
+ * Plain C version, working on 64-bit words.
+ */
+int copyCompareScalar(char *dest, const char *src, const char *current, size_t len)
+{
+    uint64_t diff = 0;
+    size_t i = 0;
+
+    for (; i + 8 <= len; i += 8) {
+        uint64_t s, c;
+        memcpy(&s, src + i, 8);
+        memcpy(&c, current + i, 8);
+        memcpy(dest + i, &s, 8);
+        diff |= s ^ c;
+    }
+    for (; i < len; i++) {
+        dest[i] = src[i];
+        diff |= (uint8_t)(src[i] ^ current[i]);
+    }
+
+    return diff != 0;
+}
+
+
+#if defined(__x86_64__) || defined(__i386__)
+/*
+ * SSE2 version, SSE2 is part of both the x86 and x86_64 Android ABIs.
+ */
+__attribute__((target("sse2")))
+static int copyCompareSse2(char *dest, const char *src, const char *current, size_t len)
+{
+    __m128i diff = _mm_setzero_si128();
+    size_t i = 0;
+
+    for (; i + 64 <= len; i += 64) {
+        __m128i s0 = _mm_loadu_si128((const __m128i *)(src + i));
+        __m128i s1 = _mm_loadu_si128((const __m128i *)(src + i + 16));
+        __m128i s2 = _mm_loadu_si128((const __m128i *)(src + i + 32));
+        __m128i s3 = _mm_loadu_si128((const __m128i *)(src + i + 48));
+        _mm_storeu_si128((__m128i *)(dest + i), s0);
+        _mm_storeu_si128((__m128i *)(dest + i + 16), s1);
+        _mm_storeu_si128((__m128i *)(dest + i + 32), s2);
+        _mm_storeu_si128((__m128i *)(dest + i + 48), s3);
+        diff = _mm_or_si128(diff, _mm_xor_si128(s0, _mm_loadu_si128((const __m128i *)(current + i))));
+        diff = _mm_or_si128(diff, _mm_xor_si128(s1, _mm_loadu_si128((const __m128i *)(current + i + 16))));
+        diff = _mm_or_si128(diff, _mm_xor_si128(s2, _mm_loadu_si128((const __m128i *)(current + i + 32))));
+        diff = _mm_or_si128(diff, _mm_xor_si128(s3, _mm_loadu_si128((const __m128i *)(current + i + 48))));
+    }
+    for (; i + 16 <= len; i += 16) {
+        __m128i s0 = _mm_loadu_si128((const __m128i *)(src + i));
+        _mm_storeu_si128((__m128i *)(dest + i), s0);
+        diff = _mm_or_si128(diff, _mm_xor_si128(s0, _mm_loadu_si128((const __m128i *)(current + i))));
+    }
+
+    int differs = _mm_movemask_epi8(_mm_cmpeq_epi8(diff, _mm_setzero_si128())) != 0xFFFF;
+
+    return copyCompareScalar(dest + i, src + i, current + i, len - i) || differs;
+}
+
+/*
+ * AVX2 version for x86_64 emulators and Chromebooks that have it.
+ */
+__attribute__((target("avx2")))
+static int copyCompareAvx2(char *dest, const char *src, const char *current, size_t len)
+{
+    __m256i diff = _mm256_setzero_si256();
+    size_t i = 0;
+
+    for (; i + 64 <= len; i += 64) {
+        __m256i s0 = _mm256_loadu_si256((const __m256i *)(src + i));
+        __m256i s1 = _mm256_loadu_si256((const __m256i *)(src + i + 32));
+        _mm256_storeu_si256((__m256i *)(dest + i), s0);
+        _mm256_storeu_si256((__m256i *)(dest + i + 32), s1);
+        diff = _mm256_or_si256(diff, _mm256_xor_si256(s0, _mm256_loadu_si256((const __m256i *)(current + i))));
+        diff = _mm256_or_si256(diff, _mm256_xor_si256(s1, _mm256_loadu_si256((const __m256i *)(current + i + 32))));
+    }
+    for (; i + 32 <= len; i += 32) {
+        __m256i s0 = _mm256_loadu_si256((const __m256i *)(src + i));
+        _mm256_storeu_si256((__m256i *)(dest + i), s0);
+        diff = _mm256_or_si256(diff, _mm256_xor_si256(s0, _mm256_loadu_si256((const __m256i *)(current + i))));
+    }
+
+    int differs = !_mm256_testz_si256(diff, diff);
+
+    return copyCompareScalar(dest + i, src + i, current + i, len - i) || differs;
+}
+#endif
+
+const char *copyCompareInit(void)
+{
+#if defined(__aarch64__)
+    // NEON is mandatory on arm64
+    copyCompare = copyCompareNeon;
+    return "NEON";
+#elif defined(__arm__)
+    // optional on armv7, the kernel is built with NEON enabled regardless and only used if present
+    if (getauxval(AT_HWCAP) & HWCAP_NEON) {
+        copyCompare = copyCompareNeon;
+        return "NEON";
+    }
+#elif defined(__x86_64__) || defined(__i386__)
+    __builtin_cpu_init();
+    if (__builtin_cpu_supports("avx2")) {
+        copyCompare = copyCompareAvx2;
+        return "AVX2";
+    }
+    copyCompare = copyCompareSse2;
+    return "SSE2";
+#endif
+
+    copyCompare = copyCompareScalar;
+    return "scalar";
+}
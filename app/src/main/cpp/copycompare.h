@@ -0,0 +1,46 @@
+/*
+ * DroidVNC-NG fused copy-and-compare kernels.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2020 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#ifndef DROIDVNC_NG_COPYCOMPARE_H
+#define DROIDVNC_NG_COPYCOMPARE_H
+
+#include <stddef.h>
+
+/*
+ * Copy len bytes from src to dest and return non-zero if src differs from current,
+ * reading src only once.
+ */
+typedef int (*copyCompareFunc)(char *dest, const char *src, const char *current, size_t len);
+
+/* Implementations to select from, the NEON one only exists on ARM */
+int copyCompareScalar(char *dest, const char *src, const char *current, size_t len);
+int copyCompareNeon(char *dest, const char *src, const char *current, size_t len);
+
+/* The implementation selected by copyCompareInit() */
+extern copyCompareFunc copyCompare;
+
+/*
+ * Select the fastest implementation the CPU we're running on supports.
+ * Returns a name of the selected implementation for logging.
+ */
+const char *copyCompareInit(void);
+
+#endif //DROIDVNC_NG_COPYCOMPARE_H
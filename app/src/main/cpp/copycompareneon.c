@@ -0,0 +1,65 @@
+/*
+ * DroidVNC-NG NEON copy-and-compare kernel.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2020 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#if defined(__aarch64__) || defined(__arm__)
+
+#include <arm_neon.h>
+#include "copycompare.h"
+
+/*
+ * NEON version for arm64 and armv7. On armv7, this file is the only one built with NEON enabled,
+ * as not all armv7 CPUs have it.
+ */
+int copyCompareNeon(char *dest, const char *src, const char *current, size_t len)
+{
+    const uint8_t *s = (const uint8_t *)src;
+    const uint8_t *c = (const uint8_t *)current;
+    uint8_t *d = (uint8_t *)dest;
+    uint8x16_t diff = vdupq_n_u8(0);
+    size_t i = 0;
+
+    for (; i + 64 <= len; i += 64) {
+        uint8x16_t s0 = vld1q_u8(s + i);
+        uint8x16_t s1 = vld1q_u8(s + i + 16);
+        uint8x16_t s2 = vld1q_u8(s + i + 32);
+        uint8x16_t s3 = vld1q_u8(s + i + 48);
+        vst1q_u8(d + i, s0);
+        vst1q_u8(d + i + 16, s1);
+        vst1q_u8(d + i + 32, s2);
+        vst1q_u8(d + i + 48, s3);
+        diff = vorrq_u8(diff, veorq_u8(s0, vld1q_u8(c + i)));
+        diff = vorrq_u8(diff, veorq_u8(s1, vld1q_u8(c + i + 16)));
+        diff = vorrq_u8(diff, veorq_u8(s2, vld1q_u8(c + i + 32)));
+        diff = vorrq_u8(diff, veorq_u8(s3, vld1q_u8(c + i + 48)));
+    }
+    for (; i + 16 <= len; i += 16) {
+        uint8x16_t s0 = vld1q_u8(s + i);
+        vst1q_u8(d + i, s0);
+        diff = vorrq_u8(diff, veorq_u8(s0, vld1q_u8(c + i)));
+    }
+
+    uint64x2_t diff64 = vreinterpretq_u64_u8(diff);
+    int differs = (vgetq_lane_u64(diff64, 0) | vgetq_lane_u64(diff64, 1)) != 0;
+
+    return copyCompareScalar(dest + i, src + i, current + i, len - i) || differs;
+}
+
+#endif
@@ -28,16 +28,190 @@
 #include <sys/socket.h>
 #include <netinet/in.h>
 #include <arpa/inet.h>
+#include <sys/param.h>
+#include <limits.h>
+#include <unistd.h>
+#include <pthread.h>
+#include <stdatomic.h>
 #include "rfb/rfb.h"
+#include "copycompare.h"
+#include "hardwarebuffer.h"
+#include "linkestimate.h"
+#include "continuousupdates.h"
+#include "inputring.h"
 
 #define TAG "droidvnc-ng (native)"
 
+/*
+ * libvncserver's scaled screens, which it sets up for clients asking for server-side scaling.
+ * Not in its public header, but exported for use across its sources.
+ */
+extern void rfbScalingSetup(rfbClientPtr cl, int width, int height);
+extern void rfbScaledScreenUpdate(rfbScreenInfoPtr screen, int x1, int y1, int x2, int y2);
+
+/* Edge length of the square tiles the framebuffer is divided into for damage detection */
+#define TILE_SIZE 64
+/* Number of sample rows of the new frame that vote for a scroll offset */
+#define SCROLL_ANCHORS 16
+/* Minimum number of rows that have to have moved for a scroll to be sent as CopyRect */
+#define SCROLL_MIN_ROWS 32
+
+/* Queueing delay a client's socket backlog may amount to before further updates are held back */
+#define PACING_DRAIN_MS 100
+/* Backlog always allowed, also used while a client's goodput is not known yet */
+#define PACING_MIN_BACKLOG (64 * 1024)
+/* Longest an update is held back for the backlog to drain, and how often the backlog is checked meanwhile */
+#define PACING_MAX_WAIT_MS 500
+#define PACING_POLL_MS 10
+/* JPEG quality steps taken off per congested update, up to the given number of steps */
+#define QUALITY_STEP 15
+#define QUALITY_MAX_STEPS 5
+#define QUALITY_MIN 15
+/* Number of uncongested updates after which one JPEG quality step is given back */
+#define QUALITY_RECOVERY_UPDATES 10
+
+/* Number of our own frames: one published, one rendered to, one left for a slow client to finish reading */
+#define OWN_FRAMES 3
+/* Number of android.media.Image frames held: one published, one left for a slow client to finish reading */
+#define IMAGE_FRAMES 2
+
+/* A frame that is, was or will be published as the screen's framebuffer */
+typedef struct {
+    char *buffer;
+    int rowStride;
+    /* Allocated size of our own frames' buffers */
+    size_t size;
+    /* Global reference to the android.media.Image the buffer belongs to, NULL for our own frames */
+    jobject image;
+    /* Frame epoch at which the frame was replaced by a newer one, 0 if never published */
+    unsigned long retiredEpoch;
+} frame;
+
+/* Our per-client state, kept in the client's clientData */
+typedef struct {
+    /* Frame epoch at which the client started sending its current update, 0 if not sending */
+    unsigned long sendEpoch;
+    /* Set if a frame got published while the client was sending an update */
+    rfbBool sendSpannedPublish;
+    /* Scale of the client's framebuffer relative to the screen's, noted while the screen gets resized */
+    double scaling;
+    /* Scale asked for before the client's first update request, applied right before that update, 0 if none */
+    double pendingScaling;
+    /* Set once the client requested its first update and thus told about the encodings it supports */
+    rfbBool hasRequestedUpdate;
+    /* Set while the client sends an update from a scaled copy of the framebuffer */
+    rfbBool isSendingScaled;
+    /* Estimates for the client's connection, sampled around each update sent with sendMutex held */
+    linkEstimate link;
+    /* Copy of link as of the last sample for readers not holding sendMutex, guarded by updateMutex */
+    linkEstimate linkSnapshot;
+    /* Update request held back while the link drains, handed back by the pacing thread, guarded by updateMutex */
+    sraRegionPtr heldRequest;
+    /* Number of pacing polls the client's next update was held back for so far */
+    int heldPolls;
+    /* Set if the update being started is held back, i.e. nothing gets sent */
+    rfbBool isHoldingBack;
+    /* Set if the update being sent carries framebuffer content, as opposed to e.g. only cursor changes */
+    rfbBool isSendingRects;
+    /* JPEG quality the client asked for, the one we currently apply, and how many steps we are below */
+    int requestedQuality;
+    int appliedQuality;
+    int qualitySteps;
+    int uncongestedUpdates;
+    /* Button mask of the client's last pointer event put into the input event ring, only used by its reader thread */
+    int queuedButtonMask;
+} clientState;
+
+/* A rect of the new frame that equals the old frame's content at offset (-dx,-dy) */
+typedef struct {
+    int x1, y1, x2, y2;
+    int dx, dy;
+} scrollRect;
+
 rfbScreenInfoPtr theScreen;
+/* 4 for RGBA_8888, 2 for RGB_565 framebuffers */
+int bytesPerPixel = 4;
 jclass theInputService;
 jclass theMainService;
 JavaVM *theVM;
-/* Back buffer that is rendered to, swapped with the screen's framebuffer when done */
-char *backBuffer;
+/*
+ * Frames are published as the screen's framebuffer without waiting for clients. Each client
+ * notes the frame epoch at which it starts sending an update, frames replaced after that
+ * are not touched until the client is done.
+ */
+frame ownFrames[OWN_FRAMES];
+frame imageFrames[IMAGE_FRAMES];
+/* The frame that is the screen's framebuffer, guarded by frameLock like frameEpoch */
+frame *publishedFrame;
+/* Incremented with every published frame */
+unsigned long frameEpoch;
+pthread_mutex_t frameLock = PTHREAD_MUTEX_INITIALIZER;
+/* What the scaled copies of the framebuffer have yet to catch up with, guarded by frameLock */
+sraRegionPtr pendingScaledRegion;
+/* Number of clients sending an update from a scaled copy, guarded by frameLock */
+int scaledSendCount;
+/* Hands held back update requests back to their clients every PACING_POLL_MS */
+pthread_t thePacingThread;
+atomic_bool isPacingThreadRunning;
+/*
+ * Held by the framebuffer functions the capture thread calls, so that vncStopServer() does not free
+ * what they use while the capture thread is still in there.
+ */
+pthread_mutex_t ingestLock = PTHREAD_MUTEX_INITIALIZER;
+/* Number of buffer allocations for our own frames, these are kept and reused across resizes */
+unsigned long frameAllocations;
+jmethodID theImageCloseMethod;
+/* Looked up once in JNI_OnLoad() as lookups are costly */
+jmethodID theOnCutTextMethod;
+jmethodID theSetPointerOverlayForcedMethod;
+jmethodID theOnClientConnectedMethod;
+jmethodID theOnClientDisconnectedMethod;
+jmethodID theCharsetDecodeMethod;
+jmethodID theCharBufferToStringMethod;
+jmethodID theStringGetBytesMethod;
+jobject theLatin1Charset;
+jobject theUTF8Charset;
+/* Set for LibVNCServer threads we attached to the VM, detaches them when they exit */
+pthread_key_t theAttachedThreadKey;
+/* One flag per tile, set if the tile differs between back buffer and screen's framebuffer */
+unsigned char *dirtyTiles;
+size_t dirtyTilesSize;
+/* Scratch space for one hash per framebuffer row, used by scroll detection */
+uint32_t *rowHashes;
+size_t rowHashesSize;
+/* Per destination column source column and weight for scaling, valid for scaleSrcWidth to scaleDestWidth */
+int *scaleColumns;
+unsigned char *scaleWeights;
+int scaleSrcWidth, scaleDestWidth;
+/* The pointer shape sent to clients via cursor pseudo-encodings, only set as the screen's cursor while all clients can render it */
+rfbCursorPtr theCursor;
+/* Set while theCursor is withheld as a client cannot render it, InputService then shows pointer overlays instead */
+rfbBool isCursorWithheld;
+pthread_mutex_t cursorLock = PTHREAD_MUTEX_INITIALIZER;
+
+/* Arrow pointer with hotspot at its tip: '#' is outline, '.' is fill, ' ' is transparent */
+#define CURSOR_WIDTH 12
+#define CURSOR_HEIGHT 19
+static const char cursorShape[] =
+        "#           "
+        "##          "
+        "#.#         "
+        "#..#        "
+        "#...#       "
+        "#....#      "
+        "#.....#     "
+        "#......#    "
+        "#.......#   "
+        "#........#  "
+        "#.........# "
+        "#..........#"
+        "#......#####"
+        "#...#..#    "
+        "#..# #..#   "
+        "#.#  #..#   "
+        "##    #..#  "
+        "      #..#  "
+        "       ##   ";
 
 /*
  * Modeled after rfbDefaultLog:
@@ -172,135 +346,1186 @@ static int set_listener_addresses(rfbScreenInfoPtr screen, const char *iface_nam
 }
 
 
-static void onPointerEvent(int buttonMask,int x,int y,rfbClientPtr cl)
+/*
+ * Set up a cleared dirty tile map and scroll detection scratch space for a framebuffer
+ * of the given dimensions, reusing the existing ones if big enough.
+ */
+static rfbBool setupDamageTracking(int width, int height)
 {
-    JNIEnv *env = NULL;
-    if ((*theVM)->AttachCurrentThread(theVM, &env, NULL) != 0) {
-        __android_log_print(ANDROID_LOG_ERROR, TAG, "onPointerEvent: could not attach thread, there will be no input");
+    size_t tiles = (size_t)((width + TILE_SIZE - 1) / TILE_SIZE) * ((height + TILE_SIZE - 1) / TILE_SIZE);
+
+    if (tiles > dirtyTilesSize) {
+        free(dirtyTiles);
+        dirtyTiles = malloc(tiles);
+        dirtyTilesSize = dirtyTiles ? tiles : 0;
+    }
+    if (dirtyTiles)
+        memset(dirtyTiles, 0, tiles);
+
+    if ((size_t)height > rowHashesSize) {
+        free(rowHashes);
+        rowHashes = malloc(height * sizeof(uint32_t));
+        rowHashesSize = rowHashes ? height : 0;
+    }
+
+    return dirtyTiles && rowHashes;
+}
+
+/*
+ * Have the scaled copies of the framebuffer catch up with the given region, which may be NULL.
+ * Each scaled copy is shared by all clients at its size and thus scaled once, not per client.
+ * Unlike rfbMarkRectAsModified(), rfbMarkRegionAsModified() does not do this.
+ * Scaled copies are written in place, so like frames they are left alone while clients send
+ * from them: regions coming up meanwhile are collected and scaled once the last of these clients
+ * is done. Returns what was held back earlier and got scaled now, which the caller has to mark
+ * as modified again using markCaughtUpAsModified(), or NULL.
+ */
+static sraRegionPtr updateScaledScreens(rfbScreenInfoPtr screen, sraRegionPtr region)
+{
+    sraRegionPtr caughtUp = NULL;
+
+    if (!screen->scaledScreenNext)
+        return NULL;
+
+    LOCK(frameLock);
+    if (!pendingScaledRegion)
+        pendingScaledRegion = sraRgnCreate();
+    if (region)
+        sraRgnOr(pendingScaledRegion, region);
+    if (scaledSendCount == 0 && !sraRgnEmpty(pendingScaledRegion)) {
+        sraRectangleIterator *iterator = sraRgnGetIterator(pendingScaledRegion);
+        sraRect rect;
+        while (sraRgnIteratorNext(iterator, &rect))
+            rfbScaledScreenUpdate(screen, rect.x1, rect.y1, rect.x2, rect.y2);
+        sraRgnReleaseIterator(iterator);
+
+        caughtUp = pendingScaledRegion;
+        pendingScaledRegion = NULL;
+        if (region)
+            sraRgnSubtract(caughtUp, region);
+    }
+    UNLOCK(frameLock);
+
+    if (caughtUp && sraRgnEmpty(caughtUp)) {
+        sraRgnDestroy(caughtUp);
+        caughtUp = NULL;
+    }
+    return caughtUp;
+}
+
+/*
+ * Mark what updateScaledScreens() caught up with as modified, so that scaled clients that were
+ * sent stale content there get it again. Frees the region.
+ */
+static void markCaughtUpAsModified(rfbScreenInfoPtr screen, sraRegionPtr caughtUp)
+{
+    if (!caughtUp)
         return;
+    rfbMarkRegionAsModified(screen, caughtUp);
+    sraRgnDestroy(caughtUp);
+}
+
+/*
+ * Mark all tiles flagged in dirtyTiles as modified and clear the flags again.
+ * Horizontally adjacent dirty tiles are merged into one rect so that clients get
+ * fewer and bigger rects to encode. Parts covered by the optional exclude region,
+ * i.e. ones that were already scheduled as a CopyRect, are left out.
+ */
+static void markDirtyTilesAsModified(rfbScreenInfoPtr screen, sraRegionPtr exclude)
+{
+    int tilesX = (screen->width + TILE_SIZE - 1) / TILE_SIZE;
+    int tilesY = (screen->height + TILE_SIZE - 1) / TILE_SIZE;
+    sraRegionPtr region = sraRgnCreate();
+
+    for (int ty = 0; ty < tilesY; ty++) {
+        unsigned char *tileRow = dirtyTiles + ty * tilesX;
+        int tx = 0;
+        while (tx < tilesX) {
+            if (!tileRow[tx]) {
+                tx++;
+                continue;
+            }
+            int runStart = tx;
+            while (tx < tilesX && tileRow[tx]) {
+                tileRow[tx] = 0;
+                tx++;
+            }
+            sraRegionPtr rect = sraRgnCreateRect(runStart * TILE_SIZE,
+                                                 ty * TILE_SIZE,
+                                                 MIN(tx * TILE_SIZE, screen->width),
+                                                 MIN((ty + 1) * TILE_SIZE, screen->height));
+            sraRgnOr(region, rect);
+            sraRgnDestroy(rect);
+        }
     }
 
-    /* needed to allow multiple dragging actions at once */
-    cl->screen->pointerClient = NULL;
+    if (exclude)
+        sraRgnSubtract(region, exclude);
 
-    jmethodID mid = (*env)->GetStaticMethodID(env, theInputService, "onPointerEvent", "(IIIJ)V");
-    (*env)->CallStaticVoidMethod(env, theInputService, mid, buttonMask, x, y, (jlong)cl);
+    if (!sraRgnEmpty(region)) {
+        sraRegionPtr caughtUp = updateScaledScreens(screen, region);
+        rfbMarkRegionAsModified(screen, region);
+        markCaughtUpAsModified(screen, caughtUp);
+    }
 
-    if ((*env)->ExceptionCheck(env))
-        (*env)->ExceptionDescribe(env);
+    sraRgnDestroy(region);
+}
+
+
+/*
+ * Hash a row segment of len bytes. Collisions are fine as every match gets verified afterwards.
+ */
+static uint32_t hashRow(const char *row, int len)
+{
+    uint32_t hash = 2166136261u;
+    int i = 0;
+    for (; i + 4 <= len; i += 4) {
+        uint32_t word;
+        memcpy(&word, row + i, 4);
+        hash = (hash ^ word) * 16777619u;
+    }
+    for (; i < len; i++)
+        hash = (hash ^ (uint8_t)row[i]) * 16777619u;
+    return hash;
+}
+
+/*
+ * Count a vote for the given offset, returns the number of distinct offsets voted for.
+ */
+static int addVote(int *offsets, int *votes, int count, int offset)
+{
+    for (int i = 0; i < count; i++) {
+        if (offsets[i] == offset) {
+            votes[i]++;
+            return count;
+        }
+    }
+    offsets[count] = offset;
+    votes[count] = 1;
+    return count + 1;
+}
+
+/*
+ * Get the offset most voted for, if any got at least two votes.
+ */
+static rfbBool getWinningVote(const int *offsets, const int *votes, int count, int *offset)
+{
+    int best = -1;
+    for (int i = 0; i < count; i++) {
+        if (votes[i] >= 2 && (best < 0 || votes[i] > votes[best]))
+            best = i;
+    }
+    if (best < 0)
+        return FALSE;
+    *offset = offsets[best];
+    return TRUE;
+}
+
+/*
+ * Check if content in the given bounds moved up or down between old and new frame.
+ * The old frame's rows are hashed and a few sample rows of the new frame vote for
+ * the offset at which they were found. The winning offset is then verified row by row
+ * and the longest run of verified rows becomes the result.
+ */
+static rfbBool detectVerticalScroll(const char *newFb, int newStride, const char *oldFb, int oldStride, int x1, int y1, int x2, int y2, scrollRect *result)
+{
+    int w = x2 - x1;
+    int h = y2 - y1;
+    int offsets[SCROLL_ANCHORS], votes[SCROLL_ANCHORS], count = 0;
+    int dy;
+
+    for (int y = y1; y < y2; y++)
+        rowHashes[y] = hashRow(oldFb + y * oldStride + x1 * bytesPerPixel, w * bytesPerPixel);
+
+    for (int i = 0; i < SCROLL_ANCHORS; i++) {
+        int y = y1 + (h * (2 * i + 1)) / (2 * SCROLL_ANCHORS);
+        uint32_t hash = hashRow(newFb + y * newStride + x1 * bytesPerPixel, w * bytesPerPixel);
+        // an unchanged row does not tell anything about motion
+        if (hash == rowHashes[y])
+            continue;
+        int matches = 0, match = 0;
+        for (int oldY = y1; oldY < y2 && matches < 2; oldY++) {
+            if (rowHashes[oldY] == hash) {
+                match = oldY;
+                matches++;
+            }
+        }
+        // not found or ambiguous, like plain coloured rows
+        if (matches != 1)
+            continue;
+        count = addVote(offsets, votes, count, y - match);
+    }
+
+    if (!getWinningVote(offsets, votes, count, &dy))
+        return FALSE;
+
+    int runStart = 0, runLength = 0, bestStart = 0, bestLength = 0;
+    for (int y = MAX(y1, y1 + dy); y < MIN(y2, y2 + dy); y++) {
+        if (memcmp(newFb + y * newStride + x1 * bytesPerPixel, oldFb + (y - dy) * oldStride + x1 * bytesPerPixel, w * bytesPerPixel) == 0) {
+            if (runLength++ == 0)
+                runStart = y;
+            if (runLength > bestLength) {
+                bestStart = runStart;
+                bestLength = runLength;
+            }
+        } else {
+            runLength = 0;
+        }
+    }
+
+    if (bestLength < SCROLL_MIN_ROWS)
+        return FALSE;
+
+    result->x1 = x1;
+    result->y1 = bestStart;
+    result->x2 = x2;
+    result->y2 = bestStart + bestLength;
+    result->dx = 0;
+    result->dy = dy;
+    return TRUE;
+}
+
+/*
+ * Check if content in the given bounds moved left or right between old and new frame.
+ * A few sample rows vote for the offset at which the old row's content is found in
+ * the new one, the winning offset is then verified like for vertical scrolling.
+ */
+static rfbBool detectHorizontalScroll(const char *newFb, int newStride, const char *oldFb, int oldStride, int x1, int y1, int x2, int y2, scrollRect *result)
+{
+    int w = x2 - x1;
+    int h = y2 - y1;
+    int offsets[SCROLL_ANCHORS], votes[SCROLL_ANCHORS], count = 0;
+    int dx;
+
+    // finding a horizontal offset is a lot more expensive than a vertical one, so use less samples
+    for (int i = 0; i < SCROLL_ANCHORS / 4; i++) {
+        int y = y1 + (h * (2 * i + 1)) / (SCROLL_ANCHORS / 2);
+        const char *newRow = newFb + y * newStride + x1 * bytesPerPixel;
+        const char *oldRow = oldFb + y * oldStride + x1 * bytesPerPixel;
+        // unchanged or plain coloured rows do not tell anything about motion
+        if (memcmp(newRow, oldRow, w * bytesPerPixel) == 0 || memcmp(newRow, newRow + bytesPerPixel, (w - 1) * bytesPerPixel) == 0)
+            continue;
+        int matches = 0, match = 0;
+        for (int d = 1; d <= w / 2 && matches < 2; d++) {
+            if (memcmp(newRow + d * bytesPerPixel, oldRow, (w - d) * bytesPerPixel) == 0) {
+                match = d;
+                matches++;
+            }
+            if (memcmp(newRow, oldRow + d * bytesPerPixel, (w - d) * bytesPerPixel) == 0) {
+                match = -d;
+                matches++;
+            }
+        }
+        if (matches != 1)
+            continue;
+        count = addVote(offsets, votes, count, match);
+    }
+
+    if (!getWinningVote(offsets, votes, count, &dx))
+        return FALSE;
+
+    int newX = x1 + MAX(dx, 0);
+    int oldX = x1 + MAX(-dx, 0);
+    int length = (w - abs(dx)) * bytesPerPixel;
+    int runStart = 0, runLength = 0, bestStart = 0, bestLength = 0;
+    for (int y = y1; y < y2; y++) {
+        if (memcmp(newFb + y * newStride + newX * bytesPerPixel, oldFb + y * oldStride + oldX * bytesPerPixel, length) == 0) {
+            if (runLength++ == 0)
+                runStart = y;
+            if (runLength > bestLength) {
+                bestStart = runStart;
+                bestLength = runLength;
+            }
+        } else {
+            runLength = 0;
+        }
+    }
+
+    if (bestLength < SCROLL_MIN_ROWS)
+        return FALSE;
+
+    result->x1 = newX;
+    result->y1 = bestStart;
+    result->x2 = x2 + MIN(dx, 0);
+    result->y2 = bestStart + bestLength;
+    result->dx = dx;
+    result->dy = 0;
+    return TRUE;
+}
+
+/*
+ * Look for content that merely moved between old and new frame within the area
+ * covered by dirty tiles. Such content can be sent as a CopyRect that clients
+ * execute themselves instead of having the moved pixels encoded again.
+ */
+static rfbBool detectScroll(const char *newFb, int newStride, const char *oldFb, int oldStride, int width, int height, scrollRect *result)
+{
+    int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+    int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+    int tx1 = tilesX, ty1 = tilesY, tx2 = -1, ty2 = -1;
+
+    for (int ty = 0; ty < tilesY; ty++) {
+        for (int tx = 0; tx < tilesX; tx++) {
+            if (dirtyTiles[ty * tilesX + tx]) {
+                tx1 = MIN(tx1, tx);
+                ty1 = MIN(ty1, ty);
+                tx2 = MAX(tx2, tx);
+                ty2 = MAX(ty2, ty);
+            }
+        }
+    }
+
+    int x1 = tx1 * TILE_SIZE;
+    int y1 = ty1 * TILE_SIZE;
+    int x2 = MIN((tx2 + 1) * TILE_SIZE, width);
+    int y2 = MIN((ty2 + 1) * TILE_SIZE, height);
+
+    // nothing changed or too little to be worth a CopyRect
+    if (tx2 < 0 || y2 - y1 <= SCROLL_MIN_ROWS || x2 - x1 < 2)
+        return FALSE;
+
+    return detectVerticalScroll(newFb, newStride, oldFb, oldStride, x1, y1, x2, y2, result)
+           || detectHorizontalScroll(newFb, newStride, oldFb, oldStride, x1, y1, x2, y2, result);
+}
+
+
+/*
+ * Compare a new frame to the screen's current framebuffer tile by tile and flag the tiles
+ * that differ in dirtyTiles. If dest is given, the new frame is copied there in the same pass.
+ */
+static void compareFrame(rfbScreenInfoPtr screen, const char *src, int srcStride, char *dest, int destStride)
+{
+    const char *current = screen->frameBuffer;
+    int rowSize = screen->width * bytesPerPixel;
+    int tileRowSize = TILE_SIZE * bytesPerPixel;
+    int tilesX = (screen->width + TILE_SIZE - 1) / TILE_SIZE;
+
+    for(int y = 0; y < screen->height; y++) {
+        unsigned char *tileRow = dirtyTiles + (y / TILE_SIZE) * tilesX;
+        for(int tx = 0; tx < tilesX; tx++) {
+            int offset = tx * tileRowSize;
+            int length = MIN(tileRowSize, rowSize - offset);
+            if(dest) {
+                // once a tile is known to be dirty, there's no need to compare its remaining rows
+                if(tileRow[tx])
+                    memcpy(dest + offset, src + offset, length);
+                else if(copyCompare(dest + offset, src + offset, current + offset, length))
+                    tileRow[tx] = 1;
+            } else {
+                // libc's memcmp() is vectorised already
+                if(!tileRow[tx] && memcmp(src + offset, current + offset, length) != 0)
+                    tileRow[tx] = 1;
+            }
+        }
+        if(dest)
+            dest += destStride;
+        src += srcStride;
+        current += screen->paddedWidthInBytes;
+    }
+}
+
+/*
+ * Copy a frame row by row, skipping padding bytes.
+ */
+static void copyFrame(rfbScreenInfoPtr screen, const char *src, int srcStride, char *dest, int destStride)
+{
+    for(int y = 0; y < screen->height; y++) {
+        memcpy(dest, src, screen->width * bytesPerPixel);
+        src += srcStride;
+        dest += destStride;
+    }
+}
+
+/*
+ * Blend two RGBA pixels, weight being the part of b in 1/256ths.
+ * Works on two channels at once, each getting 16 bits of room.
+ */
+static inline uint32_t blendPixels(uint32_t a, uint32_t b, uint32_t weight)
+{
+    uint32_t rb = (((a & 0x00ff00ff) * (256 - weight) + (b & 0x00ff00ff) * weight) >> 8) & 0x00ff00ff;
+    uint32_t ga = (((a >> 8) & 0x00ff00ff) * (256 - weight) + ((b >> 8) & 0x00ff00ff) * weight) & 0xff00ff00;
+    return rb | ga;
+}
+
+/*
+ * Convert an RGBA pixel to RGB565.
+ */
+static inline uint16_t toRGB565(uint32_t pixel)
+{
+    return ((pixel & 0xf8) << 8) | ((pixel & 0xfc00) >> 5) | ((pixel & 0xf80000) >> 19);
+}
+
+/*
+ * Store an RGBA pixel in a row of the framebuffer's pixel format.
+ */
+static inline void storePixel(char *row, int x, uint32_t pixel)
+{
+    if(bytesPerPixel == 2)
+        ((uint16_t *)row)[x] = toRGB565(pixel);
+    else
+        ((uint32_t *)row)[x] = pixel;
+}
+
+/*
+ * Get the source position for the given destination position, in 16.16 fixed point, sampling at pixel centres.
+ */
+static inline int64_t getScaleSourcePos(int destPos, int srcSize, int destSize)
+{
+    int64_t pos = (((int64_t)destPos << 16) + (1 << 15)) * srcSize / destSize - (1 << 15);
+    return MAX(pos, 0);
+}
+
+/*
+ * Scale an RGBA frame bilinearly into one of the framebuffer's pixel format, copying rows as-is
+ * if sizes and formats match. The per-column lookup tables are kept across calls.
+ * Returns FALSE if they could not be allocated.
+ */
+static rfbBool scaleFrame(const char *src, int srcStride, int srcWidth, int srcHeight, char *dest, int destStride, int destWidth, int destHeight)
+{
+    if(srcWidth == destWidth && srcHeight == destHeight) {
+        for(int y = 0; y < destHeight; y++) {
+            const uint32_t *in = (const uint32_t *)(src + (size_t)y * srcStride);
+            char *out = dest + (size_t)y * destStride;
+            if(bytesPerPixel == 4)
+                memcpy(out, in, destWidth * 4);
+            else
+                for(int x = 0; x < destWidth; x++)
+                    storePixel(out, x, in[x]);
+        }
+        return TRUE;
+    }
+
+    if(srcWidth != scaleSrcWidth || destWidth != scaleDestWidth) {
+        free(scaleColumns);
+        free(scaleWeights);
+        scaleColumns = malloc(destWidth * sizeof(int));
+        scaleWeights = malloc(destWidth);
+        scaleSrcWidth = scaleDestWidth = 0;
+        if(!scaleColumns || !scaleWeights) {
+            free(scaleColumns);
+            free(scaleWeights);
+            scaleColumns = NULL;
+            scaleWeights = NULL;
+            return FALSE;
+        }
+        for(int x = 0; x < destWidth; x++) {
+            int64_t pos = getScaleSourcePos(x, srcWidth, destWidth);
+            scaleColumns[x] = MIN((int)(pos >> 16), srcWidth - 1);
+            scaleWeights[x] = (pos >> 8) & 0xff;
+        }
+        scaleSrcWidth = srcWidth;
+        scaleDestWidth = destWidth;
+    }
+
+    for(int y = 0; y < destHeight; y++) {
+        int64_t pos = getScaleSourcePos(y, srcHeight, destHeight);
+        int y0 = MIN((int)(pos >> 16), srcHeight - 1);
+        int y1 = MIN(y0 + 1, srcHeight - 1);
+        uint32_t weightY = (pos >> 8) & 0xff;
+        const uint32_t *row0 = (const uint32_t *)(src + (size_t)y0 * srcStride);
+        const uint32_t *row1 = (const uint32_t *)(src + (size_t)y1 * srcStride);
+        char *out = dest + (size_t)y * destStride;
+        for(int x = 0; x < destWidth; x++) {
+            int x0 = scaleColumns[x];
+            int x1 = MIN(x0 + 1, srcWidth - 1);
+            uint32_t top = blendPixels(row0[x0], row0[x1], scaleWeights[x]);
+            uint32_t bottom = blendPixels(row1[x0], row1[x1], scaleWeights[x]);
+            storePixel(out, x, blendPixels(top, bottom, weightY));
+        }
+    }
+
+    return TRUE;
+}
+
+/*
+ * Close the given android.media.Image and delete our global reference to it.
+ */
+static void closeImage(JNIEnv *env, jobject image)
+{
+    (*env)->CallVoidMethod(env, image, theImageCloseMethod);
+    if ((*env)->ExceptionCheck(env)) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "closeImage: closing image failed");
+        (*env)->ExceptionClear(env);
+    }
+    (*env)->DeleteGlobalRef(env, image);
+}
+
+/*
+ * Get the oldest frame epoch at which a client started sending its current framebuffer update,
+ * ULONG_MAX if no client is sending. Must be called with frameLock held.
+ */
+static unsigned long getOldestSendEpoch(rfbScreenInfoPtr screen)
+{
+    unsigned long oldest = ULONG_MAX;
+    rfbClientIteratorPtr iterator = rfbGetClientIteratorWithClosed(screen);
+    rfbClientPtr cl;
+    while ((cl = rfbClientIteratorNext(iterator))) {
+        clientState *state = cl->clientData;
+        if (state && state->sendEpoch)
+            oldest = MIN(oldest, state->sendEpoch);
+    }
+    rfbReleaseClientIterator(iterator);
+    return oldest;
+}
+
+/*
+ * Check if the given frame can be written to or closed, i.e. it is not published and was
+ * replaced before any client still sending started reading. Must be called with frameLock held.
+ */
+static rfbBool isFrameReusable(const frame *f, unsigned long oldestSendEpoch)
+{
+    return f != publishedFrame && f->retiredEpoch <= oldestSendEpoch;
+}
+
+/*
+ * Make sure the given frame of ours can hold the given number of bytes, keeping its buffer if it's big enough.
+ * Must only be called for frames not read by any client.
+ */
+static rfbBool reserveOwnFrame(frame *f, size_t size)
+{
+    if (f->size >= size)
+        return TRUE;
+
+    char *buffer = calloc(size, 1);
+    if (!buffer)
+        return FALSE;
+
+    free(f->buffer);
+    f->buffer = buffer;
+    f->size = size;
+    frameAllocations++;
+
+    return TRUE;
+}
+
+/*
+ * Get one of our own frames that can be rendered to, NULL if all are in use.
+ * It's set up for the given row stride.
+ */
+static frame *getFreeOwnFrame(rfbScreenInfoPtr screen, int rowStride)
+{
+    frame *result = NULL;
+
+    LOCK(frameLock);
+    unsigned long oldestSendEpoch = getOldestSendEpoch(screen);
+    for (int i = 0; i < OWN_FRAMES && !result; i++) {
+        if (isFrameReusable(&ownFrames[i], oldestSendEpoch))
+            result = &ownFrames[i];
+    }
+    UNLOCK(frameLock);
+
+    if (result && !reserveOwnFrame(result, (size_t)rowStride * screen->height)) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "getFreeOwnFrame: failed allocating frame");
+        return NULL;
+    }
+    if (result)
+        result->rowStride = rowStride;
+
+    return result;
+}
+
+/*
+ * Close all images that got replaced as framebuffer and are not read by any client anymore.
+ * Returns the number of images still held back by clients.
+ */
+static int closeRetiredImages(JNIEnv *env, rfbScreenInfoPtr screen)
+{
+    jobject closable[IMAGE_FRAMES];
+    int closableCount = 0, heldCount = 0;
+
+    LOCK(frameLock);
+    unsigned long oldestSendEpoch = getOldestSendEpoch(screen);
+    for (int i = 0; i < IMAGE_FRAMES; i++) {
+        frame *f = &imageFrames[i];
+        if (!f->image || f == publishedFrame)
+            continue;
+        if (isFrameReusable(f, oldestSendEpoch)) {
+            closable[closableCount++] = f->image;
+            f->image = NULL;
+            f->buffer = NULL;
+            f->retiredEpoch = 0;
+        } else {
+            heldCount++;
+        }
+    }
+    UNLOCK(frameLock);
 
+    for (int i = 0; i < closableCount; i++)
+        closeImage(env, closable[i]);
+
+    return heldCount;
+}
+
+/*
+ * Make the given frame the screen's framebuffer. This does not wait for clients: ones that are
+ * sending an update keep reading from whatever frames they got hold of, and these are left alone
+ * until they are done. What cannot be done while clients are sending is changing the framebuffer's
+ * row stride, FALSE is returned in that case.
+ */
+static rfbBool publishFrame(rfbScreenInfoPtr screen, frame *f)
+{
+    rfbClientIteratorPtr iterator;
+    rfbClientPtr cl;
+
+    LOCK(frameLock);
+
+    if (f->rowStride != screen->paddedWidthInBytes && getOldestSendEpoch(screen) != ULONG_MAX) {
+        UNLOCK(frameLock);
+        return FALSE;
+    }
+
+    // clients sending right now might get parts of both the old and the new frame
+    iterator = rfbGetClientIteratorWithClosed(screen);
+    while ((cl = rfbClientIteratorNext(iterator))) {
+        clientState *state = cl->clientData;
+        if (state && state->sendEpoch)
+            state->sendSpannedPublish = TRUE;
+    }
+    rfbReleaseClientIterator(iterator);
+
+    frameEpoch++;
+    if (publishedFrame)
+        publishedFrame->retiredEpoch = frameEpoch;
+    f->retiredEpoch = 0;
+    publishedFrame = f;
+    screen->frameBuffer = f->buffer;
+    screen->paddedWidthInBytes = f->rowStride;
+
+    UNLOCK(frameLock);
+
+    return TRUE;
+}
+
+/*
+ * Mark what changed with the last published frame as modified, sending moved content as CopyRect.
+ */
+static void markFrameAsModified(rfbScreenInfoPtr screen, rfbBool scrolled, const scrollRect *scroll)
+{
+    rfbClientIteratorPtr iterator;
+    rfbClientPtr cl;
+    sraRegionPtr copyRegion = NULL;
+
+    if(scrolled)
+        copyRegion = sraRgnCreateRect(scroll->x1, scroll->y1, scroll->x2, scroll->y2);
+
+    /*
+      A client that was sending while the frame got published might have sent parts of the new
+      frame already, so what it shows at the copy's source is not known. Have it get the copy's
+      destination encoded instead, modified regions take precedence over copies in libvncserver.
+      Same for clients getting a scaled framebuffer, copies are in unscaled coordinates.
+    */
+    iterator = rfbGetClientIterator(screen);
+    while ((cl = rfbClientIteratorNext(iterator))) {
+        clientState *state = cl->clientData;
+        if (!state)
+            continue;
+        if (copyRegion && (state->sendSpannedPublish || cl->scaledScreen != cl->screen)) {
+            LOCK(cl->updateMutex);
+            sraRgnOr(cl->modifiedRegion, copyRegion);
+            UNLOCK(cl->updateMutex);
+        }
+        state->sendSpannedPublish = FALSE;
+    }
+    rfbReleaseClientIterator(iterator);
+
+    if(copyRegion) {
+        /*
+          Let clients copy the moved content themselves and only send what got exposed.
+          The copy has to be scheduled first, otherwise libvncserver would take the freshly
+          modified parts as copy source and mark their destination as modified as well.
+        */
+        rfbScheduleCopyRegion(screen, copyRegion, scroll->dx, scroll->dy);
+        markCaughtUpAsModified(screen, updateScaledScreens(screen, copyRegion));
+        markDirtyTilesAsModified(screen, copyRegion);
+        sraRgnDestroy(copyRegion);
+    } else {
+        markDirtyTilesAsModified(screen, NULL);
+    }
+}
+
+/*
+ * Set the screen's pixel format to match Android's RGB_565 if in 16-bit mode, rfbGetScreen()
+ * and rfbNewFramebuffer() only know about RGB555 there. Returns TRUE if the format was changed.
+ */
+static rfbBool setServerFormat(rfbScreenInfoPtr screen)
+{
+    if(bytesPerPixel != 2)
+        return FALSE;
+
+    rfbPixelFormat *format = &screen->serverFormat;
+    format->depth = 16;
+    format->redMax = 31;
+    format->greenMax = 63;
+    format->blueMax = 31;
+    format->redShift = 11;
+    format->greenShift = 5;
+    format->blueShift = 0;
+    return TRUE;
+}
+
+/*
+ * Set up our own frames for the given dimensions, reusing their buffers if big enough.
+ * Must only be called when no client reads any frame.
+ */
+static rfbBool reserveOwnFrames(int width, int height)
+{
+    for (int i = 0; i < OWN_FRAMES; i++) {
+        if (!reserveOwnFrame(&ownFrames[i], (size_t)width * height * bytesPerPixel))
+            return FALSE;
+        ownFrames[i].rowStride = width * bytesPerPixel;
+        ownFrames[i].retiredEpoch = 0;
+    }
+    return TRUE;
+}
+
+/*
+ * Free our own frames and close all images held as frames.
+ */
+static void freeFrames(JNIEnv *env)
+{
+    for (int i = 0; i < OWN_FRAMES; i++) {
+        free(ownFrames[i].buffer);
+        ownFrames[i].buffer = NULL;
+        ownFrames[i].size = 0;
+    }
+    for (int i = 0; i < IMAGE_FRAMES; i++) {
+        if (imageFrames[i].image)
+            closeImage(env, imageFrames[i].image);
+        imageFrames[i].image = NULL;
+        imageFrames[i].buffer = NULL;
+    }
+}
+
+/*
+ * Create theCursor from cursorShape, with a rich cursor in the screen's pixel format made up front
+ * so that client threads do not race creating it on first use.
+ */
+static rfbCursorPtr makeCursor(rfbScreenInfoPtr screen)
+{
+    char source[sizeof(cursorShape)];
+    char mask[sizeof(cursorShape)];
+    for (size_t i = 0; i < sizeof(cursorShape); ++i) {
+        source[i] = cursorShape[i] == '.' ? 'x' : ' ';
+        mask[i] = cursorShape[i] == ' ' ? ' ' : 'x';
+    }
+    source[sizeof(cursorShape) - 1] = mask[sizeof(cursorShape) - 1] = '\0';
+
+    rfbCursorPtr cursor = rfbMakeXCursor(CURSOR_WIDTH, CURSOR_HEIGHT, source, mask);
+    if (!cursor)
+        return NULL;
+    // kept by us across rfbSetCursor() calls, which would free it otherwise
+    cursor->cleanup = FALSE;
+    cursor->xhot = cursor->yhot = 0;
+    cursor->foreRed = cursor->foreGreen = cursor->foreBlue = 0xffff;
+    cursor->backRed = cursor->backGreen = cursor->backBlue = 0;
+    rfbMakeRichCursorFromXCursor(screen, cursor);
+    return cursor;
+}
+
+/*
+ * Destructor of theAttachedThreadKey, run when a thread we attached exits.
+ */
+static void detachThread(__unused void *env)
+{
     (*theVM)->DetachCurrentThread(theVM);
 }
 
-static void onKeyEvent(rfbBool down, rfbKeySym key, rfbClientPtr cl)
+/*
+ * Get the JNIEnv for the calling thread, attaching it to the VM if needed. LibVNCServer's
+ * threads stay attached until they exit instead of attaching and detaching per event.
+ * Returns NULL if the thread could not be attached.
+ */
+static JNIEnv *getAttachedEnv(void)
 {
     JNIEnv *env = NULL;
-    if ((*theVM)->AttachCurrentThread(theVM, &env, NULL) != 0) {
-        __android_log_print(ANDROID_LOG_ERROR, TAG, "onKeyEvent: could not attach thread, there will be no input");
+    if ((*theVM)->GetEnv(theVM, (void **) &env, JNI_VERSION_1_6) == JNI_OK)
+        return env; // a Java thread or one attached before
+
+    if ((*theVM)->AttachCurrentThread(theVM, &env, NULL) != 0)
+        return NULL;
+
+    pthread_setspecific(theAttachedThreadKey, env);
+    return env;
+}
+
+/*
+ * Tell InputService whether pointer overlays have to be shown for all clients, drawn into the
+ * captured screen, because the cursor is withheld. Called with cursorLock held so that changes
+ * arrive in order.
+ */
+static void setPointerOverlayForced(JNIEnv *env, rfbBool forced)
+{
+    if (!env) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "setPointerOverlayForced: could not attach thread, not calling InputService.setPointerOverlayForced()");
         return;
     }
 
-    jmethodID mid = (*env)->GetStaticMethodID(env, theInputService, "onKeyEvent", "(IJJ)V");
-    (*env)->CallStaticVoidMethod(env, theInputService, mid, down, (jlong)key, (jlong)cl);
+    (*env)->CallStaticVoidMethod(env, theInputService, theSetPointerOverlayForcedMethod, forced ? JNI_TRUE : JNI_FALSE);
 
     if ((*env)->ExceptionCheck(env))
         (*env)->ExceptionDescribe(env);
+}
 
-    (*theVM)->DetachCurrentThread(theVM);
+/*
+ * Clients that do not understand cursor shape updates get the cursor drawn into the framebuffer
+ * by libvncserver, which writes to and restores from whatever the framebuffer is at that time.
+ * With frames being published while clients send, that would leave cursor traces in retired
+ * frames and garble published ones, so the cursor is only set while all clients render it themselves.
+ * Otherwise, it is withheld from all clients and InputService shows pointer overlays instead,
+ * which end up in the captured screen and are thus seen by every viewer.
+ * Clients still in the handshake are not counted, they get their encodings in before their first update.
+ * Called right before the client's update is sent and thus before any cursor drawing.
+ */
+static void updateCursor(rfbClientPtr cl)
+{
+    rfbScreenInfoPtr screen = cl->screen;
+
+    if (!theCursor)
+        return;
+
+    LOCK(cursorLock);
+    rfbBool allRenderCursor = TRUE;
+    if (!cl->enableCursorShapeUpdates) {
+        allRenderCursor = FALSE;
+    } else {
+        rfbClientIteratorPtr iterator = rfbGetClientIterator(screen);
+        rfbClientPtr other;
+        while ((other = rfbClientIteratorNext(iterator))) {
+            if (other->state == RFB_NORMAL && !other->enableCursorShapeUpdates) {
+                allRenderCursor = FALSE;
+                break;
+            }
+        }
+        rfbReleaseClientIterator(iterator);
+    }
+
+    rfbCursorPtr wanted = allRenderCursor ? theCursor : NULL;
+    if (screen->cursor != wanted)
+        rfbSetCursor(screen, wanted);
+
+    if (isCursorWithheld != !allRenderCursor) {
+        isCursorWithheld = !allRenderCursor;
+        setPointerOverlayForced(getAttachedEnv(), isCursorWithheld);
+    }
+    UNLOCK(cursorLock);
 }
 
-static void onCutText(char *text, int len, rfbClientPtr cl)
+/*
+ * Update the client's link estimate and publish a copy for vncGetClientLinkEstimate(), which must
+ * not wait for sendMutex as that is held while sending. Must be called with sendMutex held.
+ */
+static void sampleLink(rfbClientPtr cl, clientState *state)
 {
-    JNIEnv *env = NULL;
-    if ((*theVM)->AttachCurrentThread(theVM, &env, NULL) != 0) {
-        __android_log_print(ANDROID_LOG_ERROR, TAG, "onCutText: could not attach thread, there will be no input");
+    linkEstimateSample(cl->sock, &state->link);
+    LOCK(cl->updateMutex);
+    state->linkSnapshot = state->link;
+    UNLOCK(cl->updateMutex);
+}
+
+/*
+ * Hold back the client's next update until its socket backlog drains within PACING_DRAIN_MS at the
+ * estimated goodput, so that slow links do not build up ever growing latency. This must not wait
+ * as it's called with the client's sendMutex held: the client's update request is taken away
+ * instead, so that nothing gets sent, and the pacing thread hands it back after PACING_POLL_MS
+ * for the next check. The modified region is left as is, content changing in the meantime gets
+ * merged into it and intermediate frames get skipped. Returns TRUE if the update is held back.
+ */
+static rfbBool paceClient(rfbClientPtr cl, clientState *state)
+{
+    sampleLink(cl, state);
+    if (state->link.backlog <= linkEstimateBudget(&state->link, PACING_DRAIN_MS, PACING_MIN_BACKLOG)
+        || state->heldPolls >= PACING_MAX_WAIT_MS / PACING_POLL_MS
+        || !atomic_load(&isPacingThreadRunning))
+        return FALSE;
+
+    LOCK(cl->updateMutex);
+    if (!state->heldRequest)
+        state->heldRequest = sraRgnCreate();
+    sraRgnOr(state->heldRequest, cl->requestedRegion);
+    sraRgnMakeEmpty(cl->requestedRegion);
+    UNLOCK(cl->updateMutex);
+
+    state->heldPolls++;
+    return TRUE;
+}
+
+/*
+ * Hand held back update requests back to their clients every PACING_POLL_MS, waking up their
+ * output threads to check their backlog again.
+ */
+static void *pacingThread(__unused void *arg)
+{
+    while (atomic_load(&isPacingThreadRunning)) {
+        usleep(PACING_POLL_MS * 1000);
+
+        rfbClientIteratorPtr iterator = rfbGetClientIterator(theScreen);
+        rfbClientPtr cl;
+        while ((cl = rfbClientIteratorNext(iterator))) {
+            clientState *state = cl->clientData;
+            if (!state)
+                continue;
+            LOCK(cl->updateMutex);
+            if (state->heldRequest) {
+                sraRgnOr(cl->requestedRegion, state->heldRequest);
+                sraRgnDestroy(state->heldRequest);
+                state->heldRequest = NULL;
+                TSIGNAL(cl->updateCond);
+            }
+            UNLOCK(cl->updateMutex);
+        }
+        rfbReleaseClientIterator(iterator);
+    }
+    return NULL;
+}
+
+/*
+ * Lower the JPEG quality of clients on congested links step by step and give it back slowly once
+ * the link keeps up again. Clients that did not ask for JPEG are left alone.
+ */
+static void adaptQuality(rfbClientPtr cl, clientState *state, rfbBool congested)
+{
+#ifdef LIBVNCSERVER_HAVE_LIBJPEG
+    if (cl->turboQualityLevel != state->appliedQuality) {
+        // client (re)set its quality level
+        state->requestedQuality = cl->turboQualityLevel;
+        state->qualitySteps = 0;
+    }
+    if (state->requestedQuality <= 0) {
+        state->appliedQuality = cl->turboQualityLevel;
         return;
     }
 
-    //Charset charset = Charset.forName("ISO-8859-1")
-    jclass clsCharset =  (*env)->FindClass(env,"java/nio/charset/Charset");
-    jmethodID midCharsetForName = (*env)->GetStaticMethodID(env, clsCharset, "forName", "(Ljava/lang/String;)Ljava/nio/charset/Charset;");
-    jobject charset = (*env)->CallStaticObjectMethod(env, clsCharset, midCharsetForName, (*env)->NewStringUTF(env, "ISO-8859-1"));
+    if (congested) {
+        state->qualitySteps = MIN(state->qualitySteps + 1, QUALITY_MAX_STEPS);
+        state->uncongestedUpdates = 0;
+    } else if (state->qualitySteps > 0 && ++state->uncongestedUpdates >= QUALITY_RECOVERY_UPDATES) {
+        state->qualitySteps--;
+        state->uncongestedUpdates = 0;
+    }
+
+    state->appliedQuality = MIN(state->requestedQuality,
+                                MAX(QUALITY_MIN, state->requestedQuality - state->qualitySteps * QUALITY_STEP));
+    cl->turboQualityLevel = state->appliedQuality;
+#endif
+}
+
+/*
+ * Have the client get a scaled copy of the framebuffer. Clients at the same scale share one
+ * scaled copy. Must be called with the client's sendMutex held and only for clients supporting
+ * the NewFBSize pseudo-encoding, others would not learn about the new size.
+ */
+static void setClientScaling(rfbClientPtr cl, double scaling)
+{
+    rfbScreenInfoPtr screen = cl->screen;
+
+    LOCK(cl->updateMutex);
+    // the list of scaled copies is walked by updateScaledScreens() with frameLock held
+    LOCK(frameLock);
+    rfbScalingSetup(cl, MAX(1, (int)(screen->width * scaling)), MAX(1, (int)(screen->height * scaling)));
+    UNLOCK(frameLock);
+    UNLOCK(cl->updateMutex);
+
+    // a scaled copy shared with clients sending right now only catches up once they are done
+    sraRegionPtr whole = sraRgnCreateRect(0, 0, screen->width, screen->height);
+    sraRegionPtr caughtUp = updateScaledScreens(screen, whole);
+    LOCK(cl->updateMutex);
+    sraRgnOr(cl->modifiedRegion, whole);
+    TSIGNAL(cl->updateCond);
+    UNLOCK(cl->updateMutex);
+    sraRgnDestroy(whole);
+    markCaughtUpAsModified(screen, caughtUp);
+}
+
+/*
+ * Called by LibVNCServer before it starts sending a framebuffer update to a client.
+ */
+static void onDisplay(rfbClientPtr cl)
+{
+    updateCursor(cl);
+
+    clientState *state = cl->clientData;
+    if (!state)
+        return;
+
+    // clients tell about their encodings before requesting their first update
+    state->hasRequestedUpdate = TRUE;
+    if (state->pendingScaling > 0) {
+        if (cl->useNewFBSize)
+            setClientScaling(cl, state->pendingScaling);
+        else
+            __android_log_print(ANDROID_LOG_WARN, TAG, "onDisplay: client does not support NewFBSize, not scaling");
+        state->pendingScaling = 0;
+    }
+
+    // nothing gets read from the framebuffer for held back updates, so no epoch to note
+    state->isHoldingBack = paceClient(cl, state);
+    if (state->isHoldingBack)
+        return;
+    adaptQuality(cl, state, state->heldPolls > 0);
+    state->heldPolls = 0;
+
+    /*
+      Same check LibVNCServer does for the update it's about to send, on what is modified now, which
+      is all it got to send and maybe more. Updates coming out empty are answered with nothing.
+    */
+    LOCK(cl->updateMutex);
+    sraRegionPtr pending = sraRgnCreateRgn(cl->modifiedRegion);
+    sraRgnOr(pending, cl->copyRegion);
+    sraRgnAnd(pending, cl->requestedRegion);
+    state->isSendingRects = !sraRgnEmpty(pending) || cl->newFBSizePending;
+    UNLOCK(cl->updateMutex);
+    sraRgnDestroy(pending);
+
+    LOCK(frameLock);
+    state->sendEpoch = frameEpoch;
+    state->isSendingScaled = cl->scaledScreen != cl->screen;
+    if (state->isSendingScaled)
+        scaledSendCount++;
+    UNLOCK(frameLock);
+}
+
+/*
+ * Called by LibVNCServer when it's done sending a framebuffer update to a client.
+ */
+static void onDisplayFinished(rfbClientPtr cl, int result)
+{
+    clientState *state = cl->clientData;
+    if (!state)
+        return;
+
+    if (state->isHoldingBack) {
+        state->isHoldingBack = FALSE;
+        return;
+    }
+
+    sampleLink(cl, state);
+
+    LOCK(frameLock);
+    state->sendEpoch = 0;
+    rfbBool wasSendingScaled = state->isSendingScaled;
+    if (wasSendingScaled)
+        scaledSendCount--;
+    state->isSendingScaled = FALSE;
+    UNLOCK(frameLock);
+
+    // scale what was held back while sending
+    if (wasSendingScaled)
+        markCaughtUpAsModified(cl->screen, updateScaledScreens(cl->screen, NULL));
+
+    // no fence for updates without content, these left the client's request in place
+    if (result && state->isSendingRects)
+        continuousUpdatesOnUpdateSent(cl);
+}
+
+
+/*
+ * Pointer and key events are queued for MainService's input event dispatcher instead of being
+ * handed to the InputService right away. Injecting input can block on binder calls, which
+ * would otherwise stall reading from the client.
+ */
+static void onPointerEvent(int buttonMask,int x,int y,rfbClientPtr cl)
+{
+    /* needed to allow multiple dragging actions at once */
+    cl->screen->pointerClient = NULL;
+
+    /* track the cursor position so that other clients get position updates */
+    rfbDefaultPtrAddEvent(buttonMask, x, y, cl);
+
+    inputEvent event = {
+            .type = INPUT_EVENT_POINTER,
+            .mask = buttonMask,
+            .x = x,
+            .y = y,
+            .client = (int64_t)(intptr_t)cl,
+    };
+    /*
+     * Plain motion is dropped right away if the ring is full, the next event carries a newer position
+     * anyway, and waiting would stall the client's reader thread. Button changes must not get lost.
+     */
+    clientState *state = cl->clientData;
+    if (inputRingPut(&event, buttonMask == state->queuedButtonMask))
+        state->queuedButtonMask = buttonMask;
+    else if (buttonMask != state->queuedButtonMask)
+        __android_log_print(ANDROID_LOG_WARN, TAG, "onPointerEvent: input event ring full, dropping button change");
+}
+
+static void onKeyEvent(rfbBool down, rfbKeySym key, rfbClientPtr cl)
+{
+    inputEvent event = {
+            .type = INPUT_EVENT_KEY,
+            .mask = down,
+            .client = (int64_t)(intptr_t)cl,
+            .keysym = key,
+    };
+    if (!inputRingPut(&event, FALSE))
+        __android_log_print(ANDROID_LOG_WARN, TAG, "onKeyEvent: input event ring full, dropping event");
+}
 
+/*
+ * Decode text in the given charset and hand it to the InputService.
+ * As the calling thread stays attached, all local references have to be deleted here.
+ */
+static void onCutTextWithCharset(JNIEnv *env, jobject charset, char *text, int len, rfbClientPtr cl)
+{
     //CharBuffer charBuffer = charset.decode(byteBuffer)
     jobject byteBuffer = (*env)->NewDirectByteBuffer(env, (jbyte *)text, len);
-    jmethodID midCharsetDecode = (*env)->GetMethodID(env, clsCharset, "decode", "(Ljava/nio/ByteBuffer;)Ljava/nio/CharBuffer;");
-    jobject charBuffer = (*env)->CallObjectMethod(env, charset, midCharsetDecode, byteBuffer);
+    jobject charBuffer = (*env)->CallObjectMethod(env, charset, theCharsetDecodeMethod, byteBuffer);
     (*env)->DeleteLocalRef(env, byteBuffer);
 
     //String jText = charBuffer.toString();
-    jclass clsCharBuffer = (*env)->FindClass(env, "java/nio/CharBuffer");
-    jmethodID midCharBufferToString = (*env)->GetMethodID(env, clsCharBuffer, "toString", "()Ljava/lang/String;");
-    jstring jText = (*env)->CallObjectMethod(env, charBuffer, midCharBufferToString);
+    jstring jText = (*env)->CallObjectMethod(env, charBuffer, theCharBufferToStringMethod);
     (*env)->DeleteLocalRef(env, charBuffer);
 
-    jmethodID mid = (*env)->GetStaticMethodID(env, theInputService, "onCutText", "(Ljava/lang/String;J)V");
-    (*env)->CallStaticVoidMethod(env, theInputService, mid, jText, (jlong)cl);
+    (*env)->CallStaticVoidMethod(env, theInputService, theOnCutTextMethod, jText, (jlong)cl);
 
     (*env)->DeleteLocalRef(env, jText);
+
     if ((*env)->ExceptionCheck(env))
         (*env)->ExceptionDescribe(env);
+}
 
-    (*theVM)->DetachCurrentThread(theVM);
+static void onCutText(char *text, int len, rfbClientPtr cl)
+{
+    JNIEnv *env = getAttachedEnv();
+    if (!env) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "onCutText: could not attach thread, there will be no input");
+        return;
+    }
+
+    onCutTextWithCharset(env, theLatin1Charset, text, len, cl);
 }
 
 static void onCutTextUTF8(char *text, int len, rfbClientPtr cl)
 {
-    JNIEnv *env = NULL;
-    if ((*theVM)->AttachCurrentThread(theVM, &env, NULL) != 0) {
+    JNIEnv *env = getAttachedEnv();
+    if (!env) {
         __android_log_print(ANDROID_LOG_ERROR, TAG, "onCutTextUTF8: could not attach thread, there will be no input");
         return;
     }
 
-    //Charset charset = Charset.forName("UTF-8")
-    jclass clsCharset =  (*env)->FindClass(env,"java/nio/charset/Charset");
-    jmethodID midCharsetForName = (*env)->GetStaticMethodID(env, clsCharset, "forName", "(Ljava/lang/String;)Ljava/nio/charset/Charset;");
-    jobject charset = (*env)->CallStaticObjectMethod(env, clsCharset, midCharsetForName, (*env)->NewStringUTF(env, "UTF-8"));
-
-    //CharBuffer charBuffer = charset.decode(byteBuffer)
-    jobject byteBuffer = (*env)->NewDirectByteBuffer(env, (jbyte *)text, len);
-    jmethodID midCharsetDecode = (*env)->GetMethodID(env, clsCharset, "decode", "(Ljava/nio/ByteBuffer;)Ljava/nio/CharBuffer;");
-    jobject charBuffer = (*env)->CallObjectMethod(env, charset, midCharsetDecode, byteBuffer);
-    (*env)->DeleteLocalRef(env, byteBuffer);
-
-    //String jText = charBuffer.toString();
-    jclass clsCharBuffer = (*env)->FindClass(env, "java/nio/CharBuffer");
-    jmethodID midCharBufferToString = (*env)->GetMethodID(env, clsCharBuffer, "toString", "()Ljava/lang/String;");
-    jstring jText = (*env)->CallObjectMethod(env, charBuffer, midCharBufferToString);
-    (*env)->DeleteLocalRef(env, charBuffer);
-
-    jmethodID mid = (*env)->GetStaticMethodID(env, theInputService, "onCutText", "(Ljava/lang/String;J)V");
-    (*env)->CallStaticVoidMethod(env, theInputService, mid, jText, (jlong)cl);
-
-    (*env)->DeleteLocalRef(env, jText);
-
-    if ((*env)->ExceptionCheck(env))
-        (*env)->ExceptionDescribe(env);
-
-    (*theVM)->DetachCurrentThread(theVM);
+    onCutTextWithCharset(env, theUTF8Charset, text, len, cl);
 }
 
 void onClientDisconnected(rfbClientPtr cl)
 {
-    JNIEnv *env = NULL;
-    // check if already attached. happens on reverse connections
-    (*theVM)->GetEnv(theVM, (void **) &env, JNI_VERSION_1_6);
-    int wasAlreadyAttached = env != NULL;
-    // AttachCurrentThread() on an already attached thread is a no-op. https://developer.android.com/training/articles/perf-jni#threads
-    if ((*theVM)->AttachCurrentThread(theVM, &env, NULL) != 0) {
+    // LibVNCServer calls this once no other thread uses the client anymore
+    clientState *state = cl->clientData;
+    if (state && state->heldRequest)
+        sraRgnDestroy(state->heldRequest);
+    free(cl->clientData);
+    cl->clientData = NULL;
+
+    // on reverse connections, this is a Java thread already
+    JNIEnv *env = getAttachedEnv();
+    if (!env) {
         __android_log_print(ANDROID_LOG_ERROR, TAG, "onClientDisconnected: could not attach thread, not calling MainService.onClientDisconnected()");
         return;
     }
 
-    jmethodID mid = (*env)->GetStaticMethodID(env, theMainService, "onClientDisconnected", "(J)V");
-    (*env)->CallStaticVoidMethod(env, theMainService, mid, (jlong)cl);
+    (*env)->CallStaticVoidMethod(env, theMainService, theOnClientDisconnectedMethod, (jlong)cl);
 
     if ((*env)->ExceptionCheck(env))
         (*env)->ExceptionDescribe(env);
-
-    // only detach if not attached before
-    if (!wasAlreadyAttached)
-        (*theVM)->DetachCurrentThread(theVM);
 }
 
 #pragma clang diagnostic push
@@ -310,28 +1535,27 @@ static enum rfbNewClientAction onClientConnected(rfbClientPtr cl)
     // connect clientGoneHook
     cl->clientGoneHook = onClientDisconnected;
 
+    cl->clientData = calloc(1, sizeof(clientState));
+    if (!cl->clientData) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "onClientConnected: failed allocating client state, refusing client");
+        return RFB_CLIENT_REFUSE;
+    }
+
     /*
      * call the managed version of this function
      */
-    JNIEnv *env = NULL;
-    // check if already attached. happens on reverse connections
-    (*theVM)->GetEnv(theVM, (void **) &env, JNI_VERSION_1_6);
-    int wasAlreadyAttached = env != NULL;
-    // AttachCurrentThread() on an already attached thread is a no-op. https://developer.android.com/training/articles/perf-jni#threads
-    if ((*theVM)->AttachCurrentThread(theVM, &env, NULL) != 0) {
+    // on reverse connections, this is a Java thread already
+    JNIEnv *env = getAttachedEnv();
+    if (!env) {
         __android_log_print(ANDROID_LOG_ERROR, TAG, "onClientConnected: could not attach thread, not calling MainService.onClientConnected()");
         return RFB_CLIENT_ACCEPT;
     }
 
-    jmethodID mid = (*env)->GetStaticMethodID(env, theMainService, "onClientConnected", "(J)V");
-    (*env)->CallStaticVoidMethod(env, theMainService, mid, (jlong)cl);
+    (*env)->CallStaticVoidMethod(env, theMainService, theOnClientConnectedMethod, (jlong)cl);
 
     if ((*env)->ExceptionCheck(env))
         (*env)->ExceptionDescribe(env);
 
-    // only detach if not attached before
-    if(!wasAlreadyAttached)
-        (*theVM)->DetachCurrentThread(theVM);
     return RFB_CLIENT_ACCEPT;
 }
 #pragma clang diagnostic pop
@@ -357,6 +1581,30 @@ JNIEXPORT jint JNI_OnLoad(JavaVM *vm, void __unused * reserved) {
     (*theVM)->GetEnv(theVM, (void**) &env, JNI_VERSION_1_6); // this will always succeed in JNI_OnLoad()
     theInputService = (*env)->NewGlobalRef(env, (*env)->FindClass(env, "net/christianbeier/droidvnc_ng/InputService"));
     theMainService = (*env)->NewGlobalRef(env, (*env)->FindClass(env, "net/christianbeier/droidvnc_ng/MainService"));
+    theImageCloseMethod = (*env)->GetMethodID(env, (*env)->FindClass(env, "android/media/Image"), "close", "()V");
+    theOnCutTextMethod = (*env)->GetStaticMethodID(env, theInputService, "onCutText", "(Ljava/lang/String;J)V");
+    theSetPointerOverlayForcedMethod = (*env)->GetStaticMethodID(env, theInputService, "setPointerOverlayForced", "(Z)V");
+    theOnClientConnectedMethod = (*env)->GetStaticMethodID(env, theMainService, "onClientConnected", "(J)V");
+    theOnClientDisconnectedMethod = (*env)->GetStaticMethodID(env, theMainService, "onClientDisconnected", "(J)V");
+    theStringGetBytesMethod = (*env)->GetMethodID(env, (*env)->FindClass(env, "java/lang/String"), "getBytes", "(Ljava/lang/String;)[B");
+    theCharBufferToStringMethod = (*env)->GetMethodID(env, (*env)->FindClass(env, "java/nio/CharBuffer"), "toString", "()Ljava/lang/String;");
+
+    //Charset charset = Charset.forName(...)
+    jclass clsCharset = (*env)->FindClass(env, "java/nio/charset/Charset");
+    jmethodID midCharsetForName = (*env)->GetStaticMethodID(env, clsCharset, "forName", "(Ljava/lang/String;)Ljava/nio/charset/Charset;");
+    theCharsetDecodeMethod = (*env)->GetMethodID(env, clsCharset, "decode", "(Ljava/nio/ByteBuffer;)Ljava/nio/CharBuffer;");
+    jstring jCharsetName = (*env)->NewStringUTF(env, "ISO-8859-1");
+    theLatin1Charset = (*env)->NewGlobalRef(env, (*env)->CallStaticObjectMethod(env, clsCharset, midCharsetForName, jCharsetName));
+    (*env)->DeleteLocalRef(env, jCharsetName);
+    jCharsetName = (*env)->NewStringUTF(env, "UTF-8");
+    theUTF8Charset = (*env)->NewGlobalRef(env, (*env)->CallStaticObjectMethod(env, clsCharset, midCharsetForName, jCharsetName));
+    (*env)->DeleteLocalRef(env, jCharsetName);
+
+    pthread_key_create(&theAttachedThreadKey, detachThread);
+
+    __android_log_print(ANDROID_LOG_INFO, TAG, "using %s copy-and-compare kernel", copyCompareInit());
+    if(!hardwareBufferInit())
+        __android_log_print(ANDROID_LOG_INFO, TAG, "no hardware buffer API, screenshots need to be copied in Java");
 
     rfbLog = logcat_info;
     rfbErr = logcat_err;
@@ -366,16 +1614,50 @@ JNIEXPORT jint JNI_OnLoad(JavaVM *vm, void __unused * reserved) {
 }
 
 
-JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncStopServer(__unused JNIEnv *env, __unused jobject thiz) {
+JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncStopServer(JNIEnv *env, __unused jobject thiz) {
 
     if(!theScreen)
         return JNI_FALSE;
 
+    if(atomic_exchange(&isPacingThreadRunning, FALSE))
+        pthread_join(thePacingThread, NULL);
+
     rfbShutdownServer(theScreen, TRUE);
-    free(theScreen->frameBuffer);
+
+    /*
+      Wait for the capture thread to leave the framebuffer functions, in case it is still running.
+      With all clients gone, these do not wait for clients reading frames anymore and return quickly.
+    */
+    LOCK(ingestLock);
+
+    theScreen->cursor = NULL;
+    if(isCursorWithheld) {
+        isCursorWithheld = FALSE;
+        setPointerOverlayForced(env, FALSE);
+    }
+    if(theCursor) {
+        rfbFreeCursor(theCursor); // frees the cursor's bitmaps, but not the cursor itself as we own it
+        free(theCursor);
+        theCursor = NULL;
+    }
     theScreen->frameBuffer = NULL;
-    free(backBuffer);
-    backBuffer = NULL;
+    publishedFrame = NULL;
+    freeFrames(env);
+    free(dirtyTiles);
+    dirtyTiles = NULL;
+    dirtyTilesSize = 0;
+    free(rowHashes);
+    rowHashes = NULL;
+    rowHashesSize = 0;
+    if (pendingScaledRegion) {
+        sraRgnDestroy(pendingScaledRegion);
+        pendingScaledRegion = NULL;
+    }
+    free(scaleColumns);
+    scaleColumns = NULL;
+    free(scaleWeights);
+    scaleWeights = NULL;
+    scaleSrcWidth = scaleDestWidth = 0;
     free((char*)theScreen->desktopName); // always malloc'ed by us
     free(theScreen->httpDir); // always malloc'ed by us
     theScreen->desktopName = NULL;
@@ -389,13 +1671,15 @@ JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncS
     rfbScreenCleanup(theScreen);
     theScreen = NULL;
 
+    UNLOCK(ingestLock);
+
     __android_log_print(ANDROID_LOG_INFO, TAG, "vncStopServer: successfully stopped");
 
     return JNI_TRUE;
 }
 
 
-JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncStartServer(JNIEnv *env, jobject thiz, jint width, jint height, jstring listenIf, jint port, jstring desktopname, jstring password, jstring httpRootDir) {
+JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncStartServer(JNIEnv *env, jobject thiz, jint width, jint height, jint bitsPerPixel, jstring listenIf, jint port, jstring desktopname, jstring password, jstring httpRootDir) {
 
     int argc = 0;
 
@@ -403,16 +1687,25 @@ JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncS
         return JNI_FALSE;
 
     rfbRegisterTightVNCFileTransferExtension();
+    continuousUpdatesRegister();
+
+    // no clients yet and MainService starts its input event dispatcher only after we return
+    inputRingReset();
+
+    bytesPerPixel = bitsPerPixel == 16 ? 2 : 4;
 
-    theScreen=rfbGetScreen(&argc, NULL, width, height, 8, 3, 4);
+    theScreen=rfbGetScreen(&argc, NULL, width, height, bytesPerPixel == 2 ? 5 : 8, 3, bytesPerPixel);
     if(!theScreen) {
         __android_log_print(ANDROID_LOG_ERROR, TAG, "vncStartServer: failed allocating rfb screen");
         return JNI_FALSE;
     }
+    setServerFormat(theScreen);
 
-    theScreen->frameBuffer=(char*)calloc(width * height * 4, 1);
-    backBuffer = (char*)calloc(width * height * 4, 1);
-    if(!theScreen->frameBuffer || !backBuffer) {
+    rfbBool haveOwnFrames = reserveOwnFrames(width, height);
+    frameEpoch = 1;
+    publishedFrame = &ownFrames[0];
+    theScreen->frameBuffer = ownFrames[0].buffer;
+    if(!haveOwnFrames || !setupDamageTracking(width, height)) {
         __android_log_print(ANDROID_LOG_ERROR, TAG, "vncStartServer: failed allocating framebuffer");
         Java_net_christianbeier_droidvnc_1ng_MainService_vncStopServer(env, thiz);
         return JNI_FALSE;
@@ -422,6 +1715,8 @@ JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncS
     theScreen->setXCutText = onCutText;
     theScreen->setXCutTextUTF8 = onCutTextUTF8;
     theScreen->newClientHook = onClientConnected;
+    theScreen->displayHook = onDisplay;
+    theScreen->displayFinishedHook = onDisplayFinished;
 
     theScreen->port = port;
     theScreen->ipv6port = port;
@@ -437,8 +1732,15 @@ JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncS
         }
     }
 
-    // don't show X cursor
+    /*
+      Send the pointer to clients as cursor shape and position via the cursor pseudo-encodings
+      instead of drawing it, so that pointer motion causes no framebuffer updates. It is set
+      as the screen's cursor once all clients are known to support this, see updateCursor().
+    */
     theScreen->cursor = NULL;
+    theCursor = makeCursor(theScreen);
+    if(!theCursor)
+        __android_log_print(ANDROID_LOG_WARN, TAG, "vncStartServer: failed creating cursor, clients will show none");
     // needed to allow multiple dragging actions at once
     theScreen->deferPtrUpdateTime = 0;
 
@@ -499,6 +1801,12 @@ JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncS
 
     rfbRunEventLoop(theScreen, -1, TRUE);
 
+    atomic_store(&isPacingThreadRunning, TRUE);
+    if (pthread_create(&thePacingThread, NULL, pacingThread, NULL) != 0) {
+        atomic_store(&isPacingThreadRunning, FALSE);
+        __android_log_print(ANDROID_LOG_WARN, TAG, "vncStartServer: failed starting pacing thread, updates will not be held back");
+    }
+
     __android_log_print(ANDROID_LOG_INFO, TAG, "vncStartServer: successfully started");
 
     return JNI_TRUE;
@@ -549,86 +1857,358 @@ JNIEXPORT jlong JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncConn
 }
 
 
-JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncNewFramebuffer(__unused JNIEnv *env, __unused jobject thiz, jint width, jint height)
+static jboolean newFramebuffer(JNIEnv *env, jint width, jint height)
 {
-    char *oldfb, *newfb;
+    jobject oldImages[IMAGE_FRAMES];
+    rfbClientIteratorPtr iterator;
+    rfbClientPtr cl;
 
-    if(!theScreen || !theScreen->frameBuffer || !backBuffer)
+    if(!theScreen || !theScreen->frameBuffer || !dirtyTiles || !rowHashes)
         return JNI_FALSE;
 
-    /* screen's framebuffer */
-    oldfb = theScreen->frameBuffer;
-    newfb = calloc(width * height * 4, 1);
-    if(!newfb) {
+    /*
+      As all frames get replaced at once, this is the one case that has to wait for
+      clients being done reading. Lock out client reads.
+    */
+    iterator = rfbGetClientIterator(theScreen);
+    while ((cl = rfbClientIteratorNext(iterator))) {
+        LOCK(cl->sendMutex);
+        clientState *state = cl->clientData;
+        if (state)
+            state->scaling = cl->scaledScreen != cl->screen ? (double)cl->scaledScreen->width / theScreen->width : 0;
+    }
+    rfbReleaseClientIterator(iterator);
+
+    /*
+      Our own frames' buffers are reused if big enough, which they always are for rotations
+      as these keep the area. If growing them fails, stay at the old dimensions, which
+      the buffers still fit.
+    */
+    rfbBool success = reserveOwnFrames(width, height);
+    if(!success) {
+        width = theScreen->width;
+        height = theScreen->height;
+        for(int i = 0; i < OWN_FRAMES; i++) {
+            ownFrames[i].rowStride = width * bytesPerPixel;
+            ownFrames[i].retiredEpoch = 0;
+        }
+    }
+    memset(ownFrames[0].buffer, 0, (size_t)width * height * bytesPerPixel);
+
+    for(int i = 0; i < IMAGE_FRAMES; i++) {
+        oldImages[i] = imageFrames[i].image;
+        imageFrames[i].image = NULL;
+        imageFrames[i].buffer = NULL;
+    }
+
+    LOCK(frameLock);
+    frameEpoch++;
+    publishedFrame = &ownFrames[0];
+    // the scaled copies get set up anew below
+    if (pendingScaledRegion) {
+        sraRgnDestroy(pendingScaledRegion);
+        pendingScaledRegion = NULL;
+    }
+    UNLOCK(frameLock);
+
+    rfbNewFramebuffer(theScreen, ownFrames[0].buffer, width, height, bytesPerPixel == 2 ? 5 : 8, 3, bytesPerPixel);
+    rfbBool formatChanged = setServerFormat(theScreen);
+
+    iterator = rfbGetClientIterator(theScreen);
+    while ((cl = rfbClientIteratorNext(iterator))) {
+        // rfbNewFramebuffer() set up translation from its default format, redo for ours
+        if(formatChanged)
+            theScreen->setTranslateFunction(cl);
+        // keep scaled clients at their scale
+        clientState *state = cl->clientData;
+        if(state && state->scaling > 0)
+            rfbScalingSetup(cl, MAX(1, (int)(width * state->scaling)), MAX(1, (int)(height * state->scaling)));
+        UNLOCK(cl->sendMutex);
+    }
+    rfbReleaseClientIterator(iterator);
+
+    for(int i = 0; i < IMAGE_FRAMES; i++) {
+        if(oldImages[i])
+            closeImage(env, oldImages[i]);
+    }
+
+    if(!success || !setupDamageTracking(width, height)) {
         __android_log_print(ANDROID_LOG_ERROR, TAG, "vncNewFramebuffer: failed allocating new framebuffer");
         return JNI_FALSE;
     }
 
-    rfbNewFramebuffer(theScreen, (char*)newfb, width, height, 8, 3, 4);
+    __android_log_print(ANDROID_LOG_INFO, TAG, "vncNewFramebuffer: set up new framebuffer, %dx%d, %lu frame allocations so far", width, height, frameAllocations);
+
+    return JNI_TRUE;
+}
+
+JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncNewFramebuffer(JNIEnv *env, jobject __unused thiz, jint width, jint height)
+{
+    LOCK(ingestLock);
+    jboolean result = newFramebuffer(*env, width, height);
+    UNLOCK(ingestLock);
+    return result;
+}
+
+/*
+ * Update the framebuffer from the given crop rectangle of buf, whose size has to match the framebuffer's.
+ */
+static jboolean updateFramebuffer(JNIEnv *env, jobject buf, jint rowStride, jint cropX, jint cropY, jint cropWidth, jint cropHeight)
+{
+    char *cBuf = (*env)->GetDirectBufferAddress(env, buf);
+    jlong bufSize = (*env)->GetDirectBufferCapacity(env, buf);
+
+    if(!theScreen || !theScreen->frameBuffer || !dirtyTiles || !rowHashes || !cBuf || bufSize < 0)
+        return JNI_FALSE;
+
+    if(cropWidth != theScreen->width || cropHeight != theScreen->height
+       || cropX < 0 || cropY < 0 || cropHeight <= 0 || rowStride < (cropX + cropWidth) * bytesPerPixel
+       || (jlong)(cropY + cropHeight - 1) * rowStride + (cropX + cropWidth) * bytesPerPixel > bufSize) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "vncUpdateFramebuffer: crop %dx%d+%d+%d does not fit buffer or framebuffer", cropWidth, cropHeight, cropX, cropY);
+        return JNI_FALSE;
+    }
+
+    // cropping is done by merely starting the row copy at an offset
+    const char *src = cBuf + (size_t)cropY * rowStride + (size_t)cropX * bytesPerPixel;
+
+    // keep the published frame's row stride so that publishing does not have to wait for clients
+    frame *back = getFreeOwnFrame(theScreen, theScreen->paddedWidthInBytes);
+    if(!back) {
+        // only comment in when needed
+        //__android_log_print(ANDROID_LOG_DEBUG, TAG, "vncUpdateFramebuffer: all frames in use by clients, dropping frame");
+        return JNI_FALSE;
+    }
+
+    /*
+      Copy new frame to back buffer, comparing it to the current one tile by tile on the way.
+    */
+    // only comment in when needed
+    //double t0 = getTime();
+
+    compareFrame(theScreen, src, rowStride, back->buffer, back->rowStride);
+
+    // only comment in when needed
+    //__android_log_print(ANDROID_LOG_DEBUG, TAG, "vncUpdateFramebuffer: copy took %.3f ms", (getTime()-t0)*1000);
+
+    /*
+      Check if changed content merely moved, i.e. was scrolled.
+    */
+    // only comment in when needed
+    //t0 = getTime();
+
+    scrollRect scroll;
+    rfbBool scrolled = detectScroll(back->buffer, back->rowStride, theScreen->frameBuffer, theScreen->paddedWidthInBytes, theScreen->width, theScreen->height, &scroll);
+
+    // only comment in when needed
+    //__android_log_print(ANDROID_LOG_DEBUG, TAG, "vncUpdateFramebuffer: scroll detection took %.3f ms", (getTime()-t0)*1000);
 
-    free(oldfb);
+    if(!publishFrame(theScreen, back))
+        return JNI_FALSE;
 
-    /* back buffer */
-    free(backBuffer);
-    backBuffer = calloc(width * height * 4, 1);
+    markFrameAsModified(theScreen, scrolled, &scroll);
 
-    __android_log_print(ANDROID_LOG_INFO, TAG, "vncNewFramebuffer: allocated new framebuffer, %dx%d", width, height);
+    /* If an image was published before, it might not be needed anymore now. */
+    closeRetiredImages(env, theScreen);
 
     return JNI_TRUE;
 }
 
-JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncUpdateFramebuffer(JNIEnv *env, jobject  __unused thiz, jobject buf, jint rowStride)
+JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncUpdateFramebuffer(JNIEnv *env, jobject  __unused thiz, jobject buf, jint rowStride, jint cropX, jint cropY, jint cropWidth, jint cropHeight)
 {
-    void *cBuf = (*env)->GetDirectBufferAddress(env, buf);
-    jlong bufSize = (*env)->GetDirectBufferCapacity(env, buf);
+    LOCK(ingestLock);
+    jboolean result = updateFramebuffer(*env, buf, rowStride, cropX, cropY, cropWidth, cropHeight);
+    UNLOCK(ingestLock);
+    return result;
+}
 
-    if(!theScreen || !theScreen->frameBuffer || !backBuffer || !cBuf || bufSize < 0)
+/*
+ * Update the framebuffer from the given android.hardware.HardwareBuffer, scaling it to the framebuffer's size
+ * on the way. Returns false only if the buffer cannot be read by the CPU, in which case the caller has to
+ * copy it some other way; dropped frames are not reported.
+ */
+static jboolean updateFramebufferFromHardwareBuffer(JNIEnv *env, jobject hardwareBuffer)
+{
+    lockedHardwareBuffer locked;
+    int err = hardwareBufferLock(env, hardwareBuffer, &locked);
+    if(err != 0) {
+        __android_log_print(ANDROID_LOG_WARN, TAG, "vncUpdateFramebufferFromHardwareBuffer: could not lock buffer: %s", strerror(-err));
         return JNI_FALSE;
+    }
+
+    if(!theScreen || !theScreen->frameBuffer || !dirtyTiles || !rowHashes) {
+        hardwareBufferUnlock(&locked);
+        return JNI_TRUE;
+    }
+
+    frame *back = getFreeOwnFrame(theScreen, theScreen->paddedWidthInBytes);
+    if(!back) {
+        hardwareBufferUnlock(&locked);
+        return JNI_TRUE;
+    }
 
     /*
-      Copy new frame to back buffer.
+      Scale right into the back buffer, then compare without copying again.
     */
     // only comment in when needed
     //double t0 = getTime();
 
-    // Copy row by row, skipping padding bytes
-    char *src = (char *)cBuf;
-    char *dest = backBuffer;
-    int rowSize = theScreen->width * 4; // pixelStride is always 4 for us
-    for(int y = 0; y < theScreen->height; y++) {
-        memcpy(dest, src, rowSize);
-        src += rowStride;
-        dest += rowSize;
+    rfbBool scaled = scaleFrame(locked.pixels, locked.rowStride, locked.width, locked.height, back->buffer, back->rowStride, theScreen->width, theScreen->height);
+    hardwareBufferUnlock(&locked);
+    if(!scaled) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "vncUpdateFramebufferFromHardwareBuffer: failed allocating scaling tables");
+        return JNI_TRUE;
     }
 
     // only comment in when needed
-    //__android_log_print(ANDROID_LOG_DEBUG, TAG, "vncUpdateFramebuffer: copy took %.3f ms", (getTime()-t0)*1000);
+    //__android_log_print(ANDROID_LOG_DEBUG, TAG, "vncUpdateFramebufferFromHardwareBuffer: scaling took %.3f ms", (getTime()-t0)*1000);
 
-    /* Lock out client reads. */
-    rfbClientIteratorPtr iterator;
-    rfbClientPtr cl;
-    iterator = rfbGetClientIterator(theScreen);
-    while ((cl = rfbClientIteratorNext(iterator))) {
-        LOCK(cl->sendMutex);
+    compareFrame(theScreen, back->buffer, back->rowStride, NULL, 0);
+
+    scrollRect scroll;
+    rfbBool scrolled = detectScroll(back->buffer, back->rowStride, theScreen->frameBuffer, theScreen->paddedWidthInBytes, theScreen->width, theScreen->height, &scroll);
+
+    if(publishFrame(theScreen, back))
+        markFrameAsModified(theScreen, scrolled, &scroll);
+
+    closeRetiredImages(env, theScreen);
+
+    return JNI_TRUE;
+}
+
+JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncUpdateFramebufferFromHardwareBuffer(JNIEnv *env, jobject  __unused thiz, jobject hardwareBuffer)
+{
+    LOCK(ingestLock);
+    jboolean result = updateFramebufferFromHardwareBuffer(*env, hardwareBuffer);
+    UNLOCK(ingestLock);
+    return result;
+}
+
+static jboolean updateFramebufferFromImage(JNIEnv *env, jobject image, jobject buf, jint rowStride)
+{
+    void *cBuf = (*env)->GetDirectBufferAddress(env, buf);
+    jlong bufSize = (*env)->GetDirectBufferCapacity(env, buf);
+
+    if(!theScreen || !theScreen->frameBuffer || !dirtyTiles || !rowHashes || !cBuf || bufSize < 0)
+        return JNI_FALSE;
+
+    if(rowStride < theScreen->width * bytesPerPixel || bufSize < (jlong)rowStride * (theScreen->height - 1) + theScreen->width * bytesPerPixel) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "vncUpdateFramebufferFromImage: image does not match framebuffer dimensions");
+        return JNI_FALSE;
     }
-    rfbReleaseClientIterator(iterator);
 
-    /* Swap frame buffers. */
-    char *tmp = theScreen->frameBuffer;
-    theScreen->frameBuffer = backBuffer;
-    backBuffer = tmp;
+    closeRetiredImages(env, theScreen);
 
-    iterator = rfbGetClientIterator(theScreen);
-    while ((cl = rfbClientIteratorNext(iterator))) {
-        UNLOCK(cl->sendMutex);
+    // only this thread changes which image frames are used, so no locking needed here
+    frame *imageFrame = NULL;
+    for(int i = 0; i < IMAGE_FRAMES && !imageFrame; i++) {
+        if(!imageFrames[i].image)
+            imageFrame = &imageFrames[i];
+    }
+    if(!imageFrame) {
+        // only comment in when needed
+        //__android_log_print(ANDROID_LOG_DEBUG, TAG, "vncUpdateFramebufferFromImage: all images in use by clients, dropping frame");
+        return JNI_FALSE;
+    }
+
+    jobject newImage = (*env)->NewGlobalRef(env, image);
+    if(!newImage) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "vncUpdateFramebufferFromImage: failed getting reference to image");
+        return JNI_FALSE;
+    }
+
+    /*
+      Compare new frame to the current one, no copying needed as the image itself gets published.
+    */
+    // only comment in when needed
+    //double t0 = getTime();
+
+    compareFrame(theScreen, cBuf, rowStride, NULL, 0);
+
+    scrollRect scroll;
+    rfbBool scrolled = detectScroll(cBuf, rowStride, theScreen->frameBuffer, theScreen->paddedWidthInBytes, theScreen->width, theScreen->height, &scroll);
+
+    // only comment in when needed
+    //__android_log_print(ANDROID_LOG_DEBUG, TAG, "vncUpdateFramebufferFromImage: compare took %.3f ms", (getTime()-t0)*1000);
+
+    /*
+      Publish the image's buffer. It has to stay valid until no client reads it anymore,
+      so we hold on to the image and close it once it got replaced and clients are done.
+    */
+    imageFrame->buffer = cBuf;
+    imageFrame->rowStride = rowStride;
+    imageFrame->image = newImage;
+
+    if(!publishFrame(theScreen, imageFrame)) {
+        /*
+          The image's row stride differs from the current framebuffer's one, which cannot be changed
+          while clients are sending. Copy it into one of our frames instead and try again next time.
+        */
+        imageFrame->image = NULL;
+        imageFrame->buffer = NULL;
+        (*env)->DeleteGlobalRef(env, newImage);
+
+        frame *back = getFreeOwnFrame(theScreen, theScreen->paddedWidthInBytes);
+        if(!back)
+            return JNI_FALSE;
+        copyFrame(theScreen, cBuf, rowStride, back->buffer, back->rowStride);
+        if(publishFrame(theScreen, back))
+            markFrameAsModified(theScreen, scrolled, &scroll);
+        return JNI_FALSE;
     }
-    rfbReleaseClientIterator(iterator);
 
-    rfbMarkRectAsModified(theScreen, 0, 0, theScreen->width, theScreen->height);
+    markFrameAsModified(theScreen, scrolled, &scroll);
+
+    /* The image published before might not be needed anymore now. */
+    closeRetiredImages(env, theScreen);
 
     return JNI_TRUE;
 }
 
+JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncUpdateFramebufferFromImage(JNIEnv *env, jobject  __unused thiz, jobject image, jobject buf, jint rowStride)
+{
+    LOCK(ingestLock);
+    jboolean result = updateFramebufferFromImage(*env, image, buf, rowStride);
+    UNLOCK(ingestLock);
+    return result;
+}
+
+static void releaseFramebufferImage(JNIEnv *env)
+{
+    if(!theScreen || !theScreen->frameBuffer)
+        return;
+
+    /*
+      The images are about to become invalid, so this has to wait for clients reading them.
+      Slow clients are disconnected after rfbMaxClientWait, so don't wait longer than that.
+    */
+    for(int waited = 0; waited <= rfbMaxClientWait; waited += 10) {
+        frame *published = publishedFrame; // only changed by this thread
+        if(published->image) {
+            /*
+              Copy the image's content to one of our frames and publish that instead,
+              so that the image can be closed without the screen's content changing.
+            */
+            frame *back = getFreeOwnFrame(theScreen, theScreen->paddedWidthInBytes);
+            if(back) {
+                copyFrame(theScreen, published->buffer, published->rowStride, back->buffer, back->rowStride);
+                publishFrame(theScreen, back);
+            }
+        }
+        if(!publishedFrame->image && closeRetiredImages(env, theScreen) == 0)
+            return;
+        usleep(10 * 1000);
+    }
+
+    __android_log_print(ANDROID_LOG_WARN, TAG, "vncReleaseFramebufferImage: timed out waiting for clients to finish reading");
+}
+
+JNIEXPORT void JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncReleaseFramebufferImage(JNIEnv *env, jobject __unused thiz)
+{
+    LOCK(ingestLock);
+    releaseFramebufferImage(*env);
+    UNLOCK(ingestLock);
+}
+
 JNIEXPORT jint JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncGetFramebufferWidth(__unused JNIEnv *env, jobject __unused thiz)
 {
     if(!theScreen || !theScreen->frameBuffer)
@@ -645,6 +2225,56 @@ JNIEXPORT jint JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncGetFr
     return theScreen->height;
 }
 
+JNIEXPORT jlong JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncGetFramebufferAllocationCount(__unused JNIEnv *env, jobject __unused thiz)
+{
+    return (jlong) frameAllocations;
+}
+
+/*
+ * Check if any fully connected client has an outstanding FramebufferUpdateRequest, i.e. if
+ * ingesting a new frame now would actually result in something being sent. Requests held back
+ * for pacing count as well, frames coming in meanwhile get merged into the held back update.
+ */
+JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncIsUpdateRequested(__unused JNIEnv *env, jobject __unused thiz)
+{
+    if(!theScreen || !theScreen->frameBuffer)
+        return JNI_FALSE;
+
+    rfbBool result = FALSE;
+    rfbClientIteratorPtr iterator = rfbGetClientIterator(theScreen);
+    rfbClientPtr cl;
+    while (!result && (cl = rfbClientIteratorNext(iterator))) {
+        if (cl->state != RFB_NORMAL)
+            continue;
+        clientState *state = cl->clientData;
+        LOCK(cl->updateMutex);
+        result = !sraRgnEmpty(cl->requestedRegion) || (state && state->heldRequest);
+        UNLOCK(cl->updateMutex);
+    }
+    rfbReleaseClientIterator(iterator);
+
+    return result;
+}
+
+/*
+ * The ring pointer and key events are queued in, see inputEvent for the layout.
+ */
+JNIEXPORT jobject JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncGetInputEventRing(JNIEnv *env, __unused jclass clazz)
+{
+    size_t size;
+    void *buffer = inputRingGetBuffer(&size);
+    return (*env)->NewDirectByteBuffer(env, buffer, (jlong)size);
+}
+
+/*
+ * Releases the events returned by the previous call and waits for new ones.
+ * Returns how many events can be read, starting after the previously returned ones.
+ */
+JNIEXPORT jint JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncWaitForInputEvents(__unused JNIEnv *env, __unused jclass clazz, jint timeoutMs)
+{
+    return inputRingTake(timeoutMs);
+}
+
 JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncIsActive(__unused JNIEnv *env, __unused jobject thiz) {
     return theScreen && rfbIsActive(theScreen);
 }
@@ -723,10 +2353,8 @@ Java_net_christianbeier_droidvnc_1ng_MainService_vncSendCutText(JNIEnv *env, __u
      * the spec and send Latin-1 here.
     */
     // text.getBytes("ISO-8859-1")
-    jclass clsString = (*env)->FindClass(env, "java/lang/String");
-    jmethodID midGetBytes = (*env)->GetMethodID(env, clsString, "getBytes", "(Ljava/lang/String;)[B");
     jstring jCharsetName = (*env)->NewStringUTF(env, "ISO-8859-1");
-    jbyteArray latin1Bytes = (jbyteArray) (*env)->CallObjectMethod(env, text, midGetBytes, jCharsetName);
+    jbyteArray latin1Bytes = (jbyteArray) (*env)->CallObjectMethod(env, text, theStringGetBytesMethod, jCharsetName);
 
     // copy byte array contents to C char array on the stack, +1 for null-terminator
     jsize latin1BytesLength = (*env)->GetArrayLength(env, latin1Bytes);
@@ -795,6 +2423,80 @@ Java_net_christianbeier_droidvnc_1ng_MainService_vncGetDestinationPort(__unused
     return port;
 }
 
+JNIEXPORT jboolean JNICALL
+Java_net_christianbeier_droidvnc_1ng_MainService_vncSetClientScaling(__unused JNIEnv *env,
+                                                                    __unused jobject thiz,
+                                                                    jlong client,
+                                                                    jfloat scaling) {
+    rfbBool success = FALSE;
+    rfbClientIteratorPtr iterator;
+    rfbClientPtr cl;
+    if (!theScreen || scaling <= 0 || scaling > 1)
+        return JNI_FALSE;
+    /*
+     * Done with the client's sendMutex held, so not while its output thread sends. Whether the
+     * client supports NewFBSize is only known once it requested its first update, before that
+     * the scaling is noted and applied right before that update.
+     */
+    iterator = rfbGetClientIterator(theScreen);
+    while ((cl = rfbClientIteratorNext(iterator)) != NULL) {
+        if (cl == (rfbClientPtr) client) {
+            clientState *state = cl->clientData;
+            if (!state)
+                break;
+            LOCK(cl->sendMutex);
+            if (!state->hasRequestedUpdate) {
+                state->pendingScaling = scaling;
+                success = TRUE;
+            } else if (cl->useNewFBSize) {
+                setClientScaling(cl, scaling);
+                success = TRUE;
+            }
+            UNLOCK(cl->sendMutex);
+            break;
+        }
+    }
+    rfbReleaseClientIterator(iterator);
+    return success;
+}
+
+/*
+ * Returns round trip time in milliseconds, goodput in bytes per second and socket backlog in bytes
+ * of the given client, with 0 meaning unknown, or NULL if there is no such client.
+ */
+JNIEXPORT jlongArray JNICALL
+Java_net_christianbeier_droidvnc_1ng_MainService_vncGetClientLinkEstimate(JNIEnv *env,
+                                                                         __unused jobject thiz,
+                                                                         jlong client) {
+    jlong values[3];
+    rfbBool found = FALSE;
+    rfbClientIteratorPtr iterator;
+    rfbClientPtr cl;
+    if (!theScreen)
+        return NULL;
+    iterator = rfbGetClientIterator(theScreen);
+    while ((cl = rfbClientIteratorNext(iterator)) != NULL) {
+        clientState *state = cl->clientData;
+        if (cl == (rfbClientPtr) client && state) {
+            found = TRUE;
+            LOCK(cl->updateMutex);
+            values[0] = state->linkSnapshot.rtt / 1000;
+            values[1] = (jlong) state->linkSnapshot.goodput;
+            values[2] = state->linkSnapshot.backlog;
+            UNLOCK(cl->updateMutex);
+            break;
+        }
+    }
+    rfbReleaseClientIterator(iterator);
+    if (!found)
+        return NULL;
+
+    jlongArray result = (*env)->NewLongArray(env, 3);
+    if (result)
+        (*env)->SetLongArrayRegion(env, result, 0, 3, values);
+    return result;
+}
+
 JNIEXPORT jstring JNICALL
 Java_net_christianbeier_droidvnc_1ng_MainService_vncGetRepeaterId(JNIEnv *env,
                                                                   __unused jobject thiz,
@@ -0,0 +1,90 @@
+/*
+ * DroidVNC-NG CPU access to android.hardware.HardwareBuffer.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2020 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#include <dlfcn.h>
+#include <errno.h>
+#include <stddef.h>
+#include <android/hardware_buffer.h>
+#include "hardwarebuffer.h"
+
+/*
+ * The AHardwareBuffer API is Android 8+ while we support older versions as well,
+ * so it's looked up at runtime instead of being linked to.
+ */
+typedef AHardwareBuffer *(*fromHardwareBufferFunc)(JNIEnv *env, jobject hardwareBufferObj);
+typedef void (*describeFunc)(const AHardwareBuffer *buffer, AHardwareBuffer_Desc *outDesc);
+typedef int (*lockFunc)(AHardwareBuffer *buffer, uint64_t usage, int32_t fence, const ARect *rect, void **outVirtualAddress);
+typedef int (*unlockFunc)(AHardwareBuffer *buffer, int32_t *fence);
+
+static fromHardwareBufferFunc fromHardwareBuffer;
+static describeFunc describe;
+static lockFunc lock;
+static unlockFunc unlock;
+
+int hardwareBufferInit(void)
+{
+    void *android = dlopen("libandroid.so", RTLD_NOW);
+    void *nativewindow = dlopen("libnativewindow.so", RTLD_NOW);
+    if (!android || !nativewindow)
+        return 0;
+
+    fromHardwareBuffer = (fromHardwareBufferFunc) dlsym(android, "AHardwareBuffer_fromHardwareBuffer");
+    describe = (describeFunc) dlsym(nativewindow, "AHardwareBuffer_describe");
+    lock = (lockFunc) dlsym(nativewindow, "AHardwareBuffer_lock");
+    unlock = (unlockFunc) dlsym(nativewindow, "AHardwareBuffer_unlock");
+
+    return fromHardwareBuffer && describe && lock && unlock;
+}
+
+int hardwareBufferLock(JNIEnv *env, jobject hardwareBuffer, lockedHardwareBuffer *locked)
+{
+    if (!fromHardwareBuffer)
+        return -ENOSYS;
+
+    AHardwareBuffer *buffer = fromHardwareBuffer(env, hardwareBuffer);
+    if (!buffer)
+        return -EINVAL;
+
+    AHardwareBuffer_Desc desc;
+    describe(buffer, &desc);
+    if (desc.format != AHARDWAREBUFFER_FORMAT_R8G8B8A8_UNORM && desc.format != AHARDWAREBUFFER_FORMAT_R8G8B8X8_UNORM)
+        return -EINVAL;
+
+    void *pixels = NULL;
+    int result = lock(buffer, AHARDWAREBUFFER_USAGE_CPU_READ_OFTEN, -1, NULL, &pixels);
+    if (result != 0)
+        return result;
+
+    locked->pixels = pixels;
+    locked->width = (int) desc.width;
+    locked->height = (int) desc.height;
+    locked->rowStride = (int) desc.stride * 4; // stride is given in pixels
+    locked->buffer = buffer;
+
+    return 0;
+}
+
+void hardwareBufferUnlock(lockedHardwareBuffer *locked)
+{
+    if (locked->buffer)
+        unlock(locked->buffer, NULL);
+    locked->buffer = NULL;
+}
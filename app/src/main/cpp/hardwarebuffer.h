@@ -0,0 +1,54 @@
+/*
+ * DroidVNC-NG CPU access to android.hardware.HardwareBuffer.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2020 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#ifndef DROIDVNC_NG_HARDWAREBUFFER_H
+#define DROIDVNC_NG_HARDWAREBUFFER_H
+
+#include <jni.h>
+
+/* A HardwareBuffer locked for CPU reading */
+typedef struct {
+    const char *pixels;
+    int width;
+    int height;
+    int rowStride;
+    /* The underlying AHardwareBuffer, needed for unlocking */
+    void *buffer;
+} lockedHardwareBuffer;
+
+/*
+ * Look up the NDK hardware buffer API, which is only there on Android 8 and newer.
+ * Returns non-zero if it is available.
+ */
+int hardwareBufferInit(void);
+
+/*
+ * Lock the given android.hardware.HardwareBuffer for reading its RGBA/RGBX pixels.
+ * Returns 0 on success, a negative error code if the buffer cannot be read by the CPU.
+ */
+int hardwareBufferLock(JNIEnv *env, jobject hardwareBuffer, lockedHardwareBuffer *locked);
+
+/*
+ * Unlock a buffer locked by hardwareBufferLock().
+ */
+void hardwareBufferUnlock(lockedHardwareBuffer *locked);
+
+#endif //DROIDVNC_NG_HARDWAREBUFFER_H
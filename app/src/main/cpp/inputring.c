@@ -0,0 +1,154 @@
+/*
+ * DroidVNC-NG native-to-Java input event ring.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2020 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+#include <stdatomic.h>
+#include <pthread.h>
+#include <time.h>
+#include <unistd.h>
+#include "inputring.h"
+
+/* Number of slots, must be a power of two */
+#define RING_SIZE 1024
+#define RING_MASK (RING_SIZE - 1)
+/* How long a producer of an event that must not be lost waits for room in a full ring before dropping it */
+#define FULL_MAX_WAIT_MS 1000
+#define FULL_POLL_MS 1
+
+/*
+ * A bounded multi-producer single-consumer queue: every slot carries a sequence number
+ * telling the position it is ready for, writing at pos and reading at pos + 1.
+ * Producers claim a position by advancing the tail, the consumer is the only one moving the head.
+ */
+static inputEvent events[RING_SIZE];
+static atomic_size_t sequences[RING_SIZE];
+static atomic_size_t tail;
+/* Consumer only: next position to read and number of events handed out but not given back yet */
+static size_t head;
+static int taken;
+
+/* Set while the consumer waits for events, so that producers only signal then */
+static atomic_int consumerWaiting;
+static pthread_mutex_t wakeLock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t wakeCond = PTHREAD_COND_INITIALIZER;
+
+void inputRingReset(void)
+{
+    for (size_t i = 0; i < RING_SIZE; ++i)
+        atomic_store_explicit(&sequences[i], i, memory_order_relaxed);
+    atomic_store(&tail, 0);
+    head = 0;
+    taken = 0;
+}
+
+void *inputRingGetBuffer(size_t *size)
+{
+    *size = sizeof(events);
+    return events;
+}
+
+int inputRingPut(inputEvent *event, int mayDrop)
+{
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    event->timestamp = now.tv_sec * 1000000000LL + now.tv_nsec;
+
+    int waitedMs = 0;
+    size_t pos = atomic_load_explicit(&tail, memory_order_relaxed);
+    for (;;) {
+        size_t seq = atomic_load_explicit(&sequences[pos & RING_MASK], memory_order_acquire);
+        intptr_t diff = (intptr_t)seq - (intptr_t)pos;
+        if (diff == 0) {
+            // slot is free, try to claim it. on failure, pos is updated to the current tail
+            if (atomic_compare_exchange_weak_explicit(&tail, &pos, pos + 1, memory_order_relaxed, memory_order_relaxed))
+                break;
+        } else if (diff < 0) {
+            // slot still holds the event from one lap before: the ring is full
+            if (mayDrop || waitedMs >= FULL_MAX_WAIT_MS)
+                return 0;
+            usleep(FULL_POLL_MS * 1000);
+            waitedMs += FULL_POLL_MS;
+            pos = atomic_load_explicit(&tail, memory_order_relaxed);
+        } else {
+            // another producer claimed the slot in the meantime
+            pos = atomic_load_explicit(&tail, memory_order_relaxed);
+        }
+    }
+
+    events[pos & RING_MASK] = *event;
+    atomic_store_explicit(&sequences[pos & RING_MASK], pos + 1, memory_order_release);
+
+    // pairs with the fence in inputRingTake(): either we see the consumer waiting or it sees our event
+    atomic_thread_fence(memory_order_seq_cst);
+    if (atomic_load_explicit(&consumerWaiting, memory_order_relaxed)) {
+        pthread_mutex_lock(&wakeLock);
+        pthread_cond_signal(&wakeCond);
+        pthread_mutex_unlock(&wakeLock);
+    }
+
+    return 1;
+}
+
+/*
+ * Number of consecutive published events starting at the head.
+ */
+static int countReady(void)
+{
+    int count = 0;
+    while (count < RING_SIZE
+           && atomic_load_explicit(&sequences[(head + count) & RING_MASK], memory_order_acquire) == head + count + 1)
+        ++count;
+    return count;
+}
+
+int inputRingTake(int timeoutMs)
+{
+    // give the slots read by the consumer back to the producers, for the next lap
+    for (; taken > 0; --taken, ++head)
+        atomic_store_explicit(&sequences[head & RING_MASK], head + RING_SIZE, memory_order_release);
+
+    int count = countReady();
+
+    if (count == 0 && timeoutMs > 0) {
+        struct timespec deadline;
+        clock_gettime(CLOCK_REALTIME, &deadline);
+        deadline.tv_sec += timeoutMs / 1000;
+        deadline.tv_nsec += (timeoutMs % 1000) * 1000000L;
+        if (deadline.tv_nsec >= 1000000000L) {
+            deadline.tv_sec++;
+            deadline.tv_nsec -= 1000000000L;
+        }
+
+        pthread_mutex_lock(&wakeLock);
+        atomic_store_explicit(&consumerWaiting, 1, memory_order_relaxed);
+        atomic_thread_fence(memory_order_seq_cst);
+        for (;;) {
+            count = countReady();
+            if (count > 0 || pthread_cond_timedwait(&wakeCond, &wakeLock, &deadline) != 0)
+                break;
+        }
+        atomic_store_explicit(&consumerWaiting, 0, memory_order_relaxed);
+        pthread_mutex_unlock(&wakeLock);
+    }
+
+    taken = count;
+    return count;
+}
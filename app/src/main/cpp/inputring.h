@@ -0,0 +1,73 @@
+/*
+ * DroidVNC-NG native-to-Java input event ring.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2020 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+#ifndef DROIDVNC_NG_INPUTRING_H
+#define DROIDVNC_NG_INPUTRING_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+#define INPUT_EVENT_POINTER 1
+#define INPUT_EVENT_KEY 2
+
+/*
+ * One input event as laid out in the ring, read from Java via a direct ByteBuffer in native byte order.
+ * Keep in sync with the offsets in MainService.
+ */
+typedef struct {
+    int32_t type;
+    /* Button mask for pointer events, down flag for key events */
+    int32_t mask;
+    int32_t x;
+    int32_t y;
+    int64_t client;
+    int64_t keysym;
+    /* CLOCK_MONOTONIC time the event was received at, in nanoseconds */
+    int64_t timestamp;
+} inputEvent;
+
+/*
+ * Reset the ring to empty. Must only be called while there are neither producers nor a consumer.
+ */
+void inputRingReset(void);
+
+/*
+ * The ring's event storage, to be wrapped in a direct ByteBuffer.
+ */
+void *inputRingGetBuffer(size_t *size);
+
+/*
+ * Append an event, callable from any number of threads without taking a lock.
+ * Fills in the event's timestamp. If the ring is full, an event with mayDrop set is dropped
+ * right away, others wait for the consumer to make room for a bounded time and are dropped
+ * after that. Returns 0 if the event was dropped.
+ */
+int inputRingPut(inputEvent *event, int mayDrop);
+
+/*
+ * To be called from the single consumer thread. Gives back the events handed out by the
+ * previous call, then waits up to timeoutMs for new ones. Returns the number of events
+ * ready to be read, starting at the slot following the ones handed out before.
+ */
+int inputRingTake(int timeoutMs);
+
+#endif //DROIDVNC_NG_INPUTRING_H
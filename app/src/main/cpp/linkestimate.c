@@ -0,0 +1,84 @@
+/*
+ * DroidVNC-NG per-connection link estimation.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2020 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#include <stddef.h>
+#include <sys/ioctl.h>
+#include <sys/socket.h>
+#include <netinet/in.h>
+#include <linux/sockios.h>
+#include <linux/tcp.h>
+#include "linkestimate.h"
+
+/* Minimum sample interval for goodput, shorter ones are dominated by timer and ACK granularity */
+#define GOODPUT_MIN_INTERVAL_MS 10
+
+void linkEstimateSample(int sock, linkEstimate *link)
+{
+    struct tcp_info info;
+    socklen_t infoLen = sizeof(info);
+    struct timespec now;
+    int backlog = 0;
+
+    if (sock < 0)
+        return;
+
+    clock_gettime(CLOCK_MONOTONIC, &now);
+
+    // unsent plus unacknowledged bytes
+    if (ioctl(sock, SIOCOUTQ, &backlog) != 0)
+        backlog = 0;
+
+    if (getsockopt(sock, IPPROTO_TCP, TCP_INFO, &info, &infoLen) != 0)
+        infoLen = 0;
+
+    if (infoLen >= offsetof(struct tcp_info, tcpi_rtt) + sizeof(info.tcpi_rtt))
+        link->rtt = info.tcpi_rtt;
+
+    link->backlog = backlog;
+
+    // tcpi_bytes_acked is Linux 4.1 and newer, older kernels hand out a shorter struct
+    if (infoLen < offsetof(struct tcp_info, tcpi_bytes_acked) + sizeof(info.tcpi_bytes_acked))
+        return;
+
+    long long intervalMs = (now.tv_sec - link->sampleTime.tv_sec) * 1000LL
+                           + (now.tv_nsec - link->sampleTime.tv_nsec) / 1000000;
+    if (link->sampleTime.tv_sec != 0 && intervalMs < GOODPUT_MIN_INTERVAL_MS)
+        return; // keep the interval going
+
+    if (link->sampleTime.tv_sec != 0 && link->sampleBacklog > 0 && info.tcpi_bytes_acked > link->bytesAcked) {
+        uint64_t rate = (info.tcpi_bytes_acked - link->bytesAcked) * 1000 / (uint64_t)intervalMs;
+        link->goodput = link->goodput ? (3 * link->goodput + rate) / 4 : rate;
+    }
+
+    link->sampleTime = now;
+    link->bytesAcked = info.tcpi_bytes_acked;
+    link->sampleBacklog = backlog;
+}
+
+int linkEstimateBudget(const linkEstimate *link, int drainMs, int minBytes)
+{
+    uint64_t budget = link->goodput * (uint64_t)drainMs / 1000;
+    if (budget < (uint64_t)minBytes)
+        return minBytes;
+    if (budget > INT32_MAX)
+        return INT32_MAX;
+    return (int)budget;
+}
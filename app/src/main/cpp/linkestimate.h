@@ -0,0 +1,55 @@
+/*
+ * DroidVNC-NG per-connection link estimation.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2020 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#ifndef DROIDVNC_NG_LINKESTIMATE_H
+#define DROIDVNC_NG_LINKESTIMATE_H
+
+#include <stdint.h>
+#include <time.h>
+
+/* What is known about a TCP connection's link, all zero if unknown */
+typedef struct {
+    /* Time, acknowledged byte count and backlog at the start of the current goodput sample interval */
+    struct timespec sampleTime;
+    uint64_t bytesAcked;
+    int sampleBacklog;
+    /* Bytes written to the socket but not yet acknowledged by the peer, as of the last sample */
+    int backlog;
+    /* Smoothed round trip time in microseconds, as tracked by the kernel */
+    uint32_t rtt;
+    /* Smoothed rate at which the peer acknowledges data while there is a backlog, in bytes per second */
+    uint64_t goodput;
+} linkEstimate;
+
+/*
+ * Update the estimate from the kernel's view of the given socket.
+ * Goodput is only sampled over intervals that started with a backlog, as otherwise
+ * it would measure how much we sent instead of how much the link can take.
+ */
+void linkEstimateSample(int sock, linkEstimate *link);
+
+/*
+ * Number of bytes that may be queued on the link so that it drains within the given time.
+ * Never less than minBytes, which is also used while goodput is unknown.
+ */
+int linkEstimateBudget(const linkEstimate *link, int drainMs, int minBytes);
+
+#endif //DROIDVNC_NG_LINKESTIMATE_H
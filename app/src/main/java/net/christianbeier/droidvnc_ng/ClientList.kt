@@ -74,16 +74,26 @@ class ClientList private constructor(
         val host: String?,
         val port: Int?,
         val repeaterId: String?,
-        val requestId: String?
+        val requestId: String?,
+        val rttMs: Long?,
+        val goodputBytesPerSecond: Long?,
+        val backlogBytes: Long?
     ) {
+        /**
+         * linkEstimate is round trip time in milliseconds, goodput in bytes per second and
+         * socket backlog in bytes, each 0 if not known yet, or null if there is no connection.
+         */
         constructor(
-            clientPtr: Long, host: String?, port: Int?, repeaterId: String?, requestId: String?
+            clientPtr: Long, host: String?, port: Int?, repeaterId: String?, requestId: String?, linkEstimate: LongArray?
         ) : this(
             connectionId = if (clientPtr == 0L) {
                 null
             } else {
                 hash(clientPtr)
-            }, host = host, port = port, repeaterId = repeaterId, requestId = requestId
+            }, host = host, port = port, repeaterId = repeaterId, requestId = requestId,
+            rttMs = linkEstimate?.get(0)?.takeIf { it > 0 },
+            goodputBytesPerSecond = linkEstimate?.get(1)?.takeIf { it > 0 },
+            backlogBytes = linkEstimate?.get(2)
         )
     }
 
@@ -35,10 +35,15 @@ public class Constants {
     public static final String PREFS_KEY_SETTINGS_SHOW_POINTERS = "settings_show_pointers" ;
     public static final String PREFS_KEY_SETTINGS_ACCESS_KEY = "settings_access_key";
     public static final String PREFS_KEY_SETTINGS_FILE_TRANSFER = "settings_file_transfer";
+    public static final String PREFS_KEY_SETTINGS_MAX_FPS = "settings_max_fps";
+    public static final String PREFS_KEY_SETTINGS_RGB565 = "settings_rgb565";
 
     /*
         persisted runtime values shared between components
      */
     public static final String PREFS_KEY_SERVER_LAST_SCALING = "server_last_scaling" ;
+    public static final String PREFS_KEY_SERVER_LAST_MAX_FPS = "server_last_max_fps" ;
+    public static final String PREFS_KEY_SERVER_LAST_RGB565 = "server_last_rgb565" ;
+    public static final String PREFS_KEY_SERVER_LAST_POINTER_COALESCE_MS = "server_last_pointer_coalesce_ms" ;
     public static final String PREFS_KEY_INPUT_LAST_ENABLED = "input_last_enabled" ;
 }
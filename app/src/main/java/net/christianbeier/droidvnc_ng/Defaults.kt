@@ -88,6 +88,18 @@ class Defaults {
     var startOnBootDelay = 0
         private set
 
+    @EncodeDefault
+    var maxFps = 0
+        private set
+
+    @EncodeDefault
+    var rgb565 = false
+        private set
+
+    @EncodeDefault
+    var pointerCoalesceMs = -1
+        private set
+
     /*
        NB if adding fields here, don't forget to add their copying in the constructor as well!
      */
@@ -129,6 +141,9 @@ class Defaults {
             this.password = appConfig.getString("password", this.password) ?: this.password
             this.startOnBoot = appConfig.getBoolean("startOnBoot", this.startOnBoot)
             this.startOnBootDelay = appConfig.getInt("startOnBootDelay", this.startOnBootDelay)
+            this.maxFps = appConfig.getInt("maxFps", this.maxFps)
+            this.rgb565 = appConfig.getBoolean("rgb565", this.rgb565)
+            this.pointerCoalesceMs = appConfig.getInt("pointerCoalesceMs", this.pointerCoalesceMs)
 
             val scalingStr = appConfig.getString("scaling", "0.0")
             try {
@@ -171,6 +186,9 @@ class Defaults {
                 this.accessKey = readDefault.accessKey
             this.startOnBoot = readDefault.startOnBoot
             this.startOnBootDelay = readDefault.startOnBootDelay
+            this.maxFps = readDefault.maxFps
+            this.rgb565 = readDefault.rgb565
+            this.pointerCoalesceMs = readDefault.pointerCoalesceMs
             // add here!
         } catch (e: Exception) {
             Log.w(TAG, "${e.message}")
@@ -15,6 +15,7 @@ import android.view.Gravity
 import android.view.View
 import android.view.WindowManager
 import java.lang.IllegalArgumentException
+import java.util.concurrent.atomic.AtomicBoolean
 
 /**
  * Create an input pointer view to be used on the specified display
@@ -62,6 +63,20 @@ class InputPointerView(
         PixelFormat.TRANSLUCENT
     )
     
+    /*
+        Position to move to, packed into one value so x and y are always read together, and
+        whether moving there is posted already. Positions arriving faster than the UI thread
+        moves the view are coalesced without allocating a Runnable for each.
+     */
+    @Volatile
+    private var pendingPosition: Long = 0
+    private val isPositionPosted = AtomicBoolean(false)
+    private val positionRunnable = Runnable {
+        isPositionPosted.set(false)
+        val position = pendingPosition
+        positionView((position shr 32).toInt(), position.toInt())
+    }
+
     init {
         val displayManager = context.getSystemService(Context.DISPLAY_SERVICE) as DisplayManager
 
@@ -130,5 +145,15 @@ class InputPointerView(
         windowManager.updateViewLayout(this, layoutParams)
     }
 
+    /**
+     * Position input pointer view from any thread, only the latest position is applied.
+     */
+    fun postPosition(x: Int, y: Int) {
+        pendingPosition = (x.toLong() shl 32) or (y.toLong() and 0xffffffffL)
+        if (isPositionPosted.compareAndSet(false, true)) {
+            post(positionRunnable)
+        }
+    }
+
 }
 
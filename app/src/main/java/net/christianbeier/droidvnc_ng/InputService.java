@@ -20,7 +20,9 @@ import android.annotation.SuppressLint;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
+import android.hardware.HardwareBuffer;
 import android.media.AudioManager;
 import android.os.Build;
 import android.os.Bundle;
@@ -29,6 +31,7 @@ import android.os.Looper;
 import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.view.Display;
 import android.view.KeyEvent;
 import android.view.WindowManager;
@@ -36,6 +39,7 @@ import android.view.View;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.ViewConfiguration;
 import android.graphics.Path;
+import android.hardware.display.DisplayManager;
 import android.view.accessibility.AccessibilityNodeInfo;
 import android.view.accessibility.AccessibilityWindowInfo;
 
@@ -76,10 +80,25 @@ public class InputService extends AccessibilityService {
 		// pointer-related
 		boolean isButtonOneDown;
 		Path path = new Path();
+		// scratch path for click and swipe gestures, strokes copy the path they are given
+		final Path gesturePath = new Path();
 		GestureDescription.StrokeDescription stroke;
 		long lastGestureStartTime;
+		// stroke motion is coalesced for this long before being dispatched, set per stroke
+		long strokeCoalesceMs;
+		// last point added to the path and whether the path has motion not dispatched yet
+		int strokeX, strokeY;
+		boolean isStrokeMotionPending;
+		// set while a stroke gesture built under the context's lock is being dispatched outside of it,
+		// later parts of the stroke wait for it so that they reach the OS in order
+		boolean isStrokeDispatching;
+		// dispatches pending motion if no further event comes in within the coalescing window
+		Runnable strokeFlush;
 		GestureCallback gestureCallback = new GestureCallback();
-		InputPointerView pointerView;
+		// created and removed on the main thread only
+		volatile InputPointerView pointerView;
+		// set if pointerView was only added because the cursor is withheld from remote viewers
+		boolean isPointerViewForced;
 		// keyboard-related
 		boolean isKeyCtrlDown;
 		boolean isKeyAltDown;
@@ -120,15 +139,39 @@ public class InputService extends AccessibilityService {
 	 * the given factor.
 	 */
 	static float scaling;
+	/**
+	 * Window in milliseconds within which pointer motion during a drag is coalesced into one
+	 * dispatched gesture. Negative means one frame of the display the client's input goes to.
+	 */
+	static int pointerCoalesceMs;
 	static boolean isInputEnabled;
+	// set by native code while the cursor is withheld from remote viewers
+	private static volatile boolean isPointerOverlayForced;
 
 	private TakeScreenshotCallback mTakeScreenShotCallback;
+	/*
+		The delay between screenshots is adapted AIMD-style: it's probed down additively towards
+		the minimum on success and backed off multiplicatively when the platform reports we're too fast.
+	 */
 	private static final int TAKE_SCREEN_SHOT_DELAY_MS_INITIAL = 100;
+	private static final int TAKE_SCREEN_SHOT_DELAY_MS_MIN = 100;
+	private static final int TAKE_SCREEN_SHOT_DELAY_MS_MAX = 2000;
+	private static final int TAKE_SCREEN_SHOT_DELAY_MS_DECREASE = 10;
+	// used instead while no client is waiting for an update
+	private static final int TAKE_SCREEN_SHOT_DELAY_MS_IDLE = 500;
 	private int mTakeScreenShotDelayMs = TAKE_SCREEN_SHOT_DELAY_MS_INITIAL;
+	private volatile int mTakeScreenShotEffectiveDelayMs;
+	// set once native code turned out unable to read screenshot buffers, these then get copied via Bitmaps
+	private boolean mIsScreenShotCopyNeeded;
+	private ByteBuffer mScreenShotCopyBuffer;
 
 	private Handler mMainHandler;
 
-	private final Map<Long, InputContext> mInputContexts = new ConcurrentHashMap<>();
+	// keyed by primitive client handle so that per-event lookups do not box, guarded by itself
+	private final LongSparseArray<InputContext> mInputContexts = new LongSparseArray<>();
+	// real height of the default display for scroll events, 0 if to be queried again after a configuration change
+	private volatile int mDisplayHeight;
+	private final DisplayMetrics mDisplayMetrics = new DisplayMetrics();
 	/**
 	 * System keyboard input foci, display-specific starting on Android 10 (really 11 in higher layers),
 	 * see <a href="https://source.android.com/docs/core/display/multi_display/displays#focus">Android docs</a>
@@ -185,10 +228,18 @@ public class InputService extends AccessibilityService {
 		instance = this;
 		isInputEnabled = PreferenceManager.getDefaultSharedPreferences(this).getBoolean(Constants.PREFS_KEY_INPUT_LAST_ENABLED, !new Defaults(this).getViewOnly());
 		scaling = PreferenceManager.getDefaultSharedPreferences(this).getFloat(Constants.PREFS_KEY_SERVER_LAST_SCALING, new Defaults(this).getScaling());
+		pointerCoalesceMs = PreferenceManager.getDefaultSharedPreferences(this).getInt(Constants.PREFS_KEY_SERVER_LAST_POINTER_COALESCE_MS, new Defaults(this).getPointerCoalesceMs());
 		mMainHandler = new Handler(instance.getMainLooper());
 		Log.i(TAG, "onServiceConnected");
 	}
 
+	@Override
+	public void onConfigurationChanged(@NonNull Configuration newConfig) {
+		super.onConfigurationChanged(newConfig);
+		// display size might have changed with rotation or resolution
+		mDisplayHeight = 0;
+	}
+
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
@@ -244,42 +295,100 @@ public class InputService extends AccessibilityService {
 			int displayId = Display.DEFAULT_DISPLAY;
 			InputContext inputContext = new InputContext();
 			inputContext.setDisplayId(displayId);
+			inputContext.strokeFlush = () -> instance.flushStroke(inputContext);
+			int inputContextsSize = instance.getInputContextCount();
+			synchronized (instance.mInputContexts) {
+				instance.mInputContexts.put(client, inputContext);
+			}
 			if(withPointer) {
+				// this is for local observers, remote viewers get the cursor via the cursor pseudo-encodings.
 				// run this on UI thread (use main handler as view is not yet added)
-                int inputContextsSize = instance.mInputContexts.size();
                 instance.mMainHandler.post(() -> {
-                    inputContext.pointerView = new InputPointerView(
-                            instance,
-                            displayId,
-                            0.4f * ((inputContextsSize + 1) % 3),
-                            0.2f * ((inputContextsSize + 1) % 5),
-                            1.0f * ((inputContextsSize + 1) % 2)
-                    );
+                    inputContext.pointerView = instance.createPointerView(displayId, inputContextsSize);
                     inputContext.pointerView.addView();
                });
+			} else {
+				// might need a pointer if the cursor is withheld from remote viewers
+				instance.mMainHandler.post(instance::updateForcedPointerViews);
 			}
-			instance.mInputContexts.put(client, inputContext);
 		} catch (Exception e) {
 			Log.e(TAG, "addClient: " + e);
 		}
 	}
 
+	/**
+	 * Called from native code when the cursor gets withheld from or given back to remote viewers.
+	 * It is withheld while some viewer cannot render the cursor sent via pseudo-encodings,
+	 * pointer overlays are then shown for all clients so that viewers see them in the captured screen.
+	 */
+	@SuppressWarnings("unused")
+	public static void setPointerOverlayForced(boolean forced) {
+		isPointerOverlayForced = forced;
+		try {
+			instance.mMainHandler.post(instance::updateForcedPointerViews);
+		} catch (Exception e) {
+			// instance probably null
+			Log.e(TAG, "setPointerOverlayForced: failed: " + e);
+		}
+	}
+
+	/**
+	 * Add or remove the pointer views of clients that only have one because of isPointerOverlayForced.
+	 * Runs on the main thread.
+	 */
+	private void updateForcedPointerViews() {
+		synchronized (mInputContexts) {
+			for (int i = 0; i < mInputContexts.size(); ++i) {
+				InputContext inputContext = mInputContexts.valueAt(i);
+				if (isPointerOverlayForced && inputContext.pointerView == null) {
+					inputContext.pointerView = createPointerView(inputContext.getDisplayId(), i);
+					inputContext.pointerView.addView();
+					inputContext.isPointerViewForced = true;
+				} else if (!isPointerOverlayForced && inputContext.isPointerViewForced) {
+					Objects.requireNonNull(inputContext.pointerView).removeView();
+					inputContext.pointerView = null;
+					inputContext.isPointerViewForced = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create a pointer view with a colour picked by the given client index.
+	 */
+	private InputPointerView createPointerView(int displayId, int index) {
+		return new InputPointerView(
+				this,
+				displayId,
+				0.4f * ((index + 1) % 3),
+				0.2f * ((index + 1) % 5),
+				1.0f * ((index + 1) % 2)
+		);
+	}
+
     @WorkerThread
 	public static void removeClient(long client) {
 		// NB runs on a worker thread!
 		try {
-			InputContext inputContext = instance.mInputContexts.get(client);
-			if(inputContext != null && inputContext.pointerView != null) {
-				// run this on UI thread
-				inputContext.pointerView.post(inputContext.pointerView::removeView);
+			InputContext inputContext = instance.getInputContext(client);
+			synchronized (instance.mInputContexts) {
+				instance.mInputContexts.remove(client);
+			}
+			if(inputContext != null) {
+				instance.mMainHandler.removeCallbacks(inputContext.strokeFlush);
+				// run this on UI thread, after any pending pointer view creation
+				instance.mMainHandler.post(() -> {
+					if (inputContext.pointerView != null) {
+						inputContext.pointerView.removeView();
+						inputContext.pointerView = null;
+					}
+				});
 			}
-			instance.mInputContexts.remove(client);
 		} catch (Exception e) {
 			Log.e(TAG, "removeClient: " + e);
 		}
 	}
 
-	@SuppressWarnings("unused")
     @WorkerThread
 	public static void onPointerEvent(int buttonMask, int x, int y, long client) {
 
@@ -288,7 +397,7 @@ public class InputService extends AccessibilityService {
 		}
 
 		try {
-			InputContext inputContext = instance.mInputContexts.get(client);
+			InputContext inputContext = instance.getInputContext(client);
 
 			if(inputContext == null) {
 				throw new IllegalStateException("Client " + client + " was not added or is already removed");
@@ -303,30 +412,41 @@ public class InputService extends AccessibilityService {
 			InputPointerView pointerView = inputContext.pointerView;
 			if (pointerView != null) {
 				// showing pointers is enabled
-				int finalX = x;
-				int finalY = y;
-				pointerView.post(() -> pointerView.positionView(finalX, finalY));
+				pointerView.postPosition(x, y);
 			}
 
 			/*
 			    left mouse button
 			 */
+			// stroke state is shared with flushStroke() on the main thread. the gesture is built
+			// under the lock, but dispatched, which is a binder call, after releasing it
+			GestureDescription strokeGesture = null;
+			synchronized (inputContext) {
+				while (inputContext.isStrokeDispatching) {
+					inputContext.wait();
+				}
 
-			// down, was up
-			if ((buttonMask & (1 << 0)) != 0 && !inputContext.isButtonOneDown) {
-				inputContext.isButtonOneDown = true;
-				instance.startStroke(inputContext, x, y);
-			}
+				// down, was up
+				if ((buttonMask & (1 << 0)) != 0 && !inputContext.isButtonOneDown) {
+					inputContext.isButtonOneDown = true;
+					instance.startStroke(inputContext, x, y);
+				}
 
-			// down, was down
-			if ((buttonMask & (1 << 0)) != 0 && inputContext.isButtonOneDown) {
-				instance.continueStroke(inputContext, x, y);
-			}
+				// down, was down
+				if ((buttonMask & (1 << 0)) != 0 && inputContext.isButtonOneDown) {
+					strokeGesture = instance.continueStroke(inputContext, x, y);
+				}
+
+				// up, was down
+				if ((buttonMask & (1 << 0)) == 0 && inputContext.isButtonOneDown) {
+					inputContext.isButtonOneDown = false;
+					strokeGesture = instance.endStroke(inputContext, x, y);
+				}
 
-			// up, was down
-			if ((buttonMask & (1 << 0)) == 0 && inputContext.isButtonOneDown) {
-				inputContext.isButtonOneDown = false;
-				instance.endStroke(inputContext, x, y);
+				inputContext.isStrokeDispatching = strokeGesture != null;
+			}
+			if (strokeGesture != null) {
+				instance.dispatchStrokeGesture(inputContext, strokeGesture);
 			}
 
 
@@ -337,22 +457,12 @@ public class InputService extends AccessibilityService {
 
 			// scroll up
 			if ((buttonMask & (1 << 3)) != 0) {
-
-				DisplayMetrics displayMetrics = new DisplayMetrics();
-				WindowManager wm = (WindowManager) instance.getApplicationContext().getSystemService(Context.WINDOW_SERVICE);
-				wm.getDefaultDisplay().getRealMetrics(displayMetrics);
-
-				instance.scroll(inputContext, x, y, -displayMetrics.heightPixels / 2);
+				instance.scroll(inputContext, x, y, -instance.getDisplayHeight() / 2);
 			}
 
 			// scroll down
 			if ((buttonMask & (1 << 4)) != 0) {
-
-				DisplayMetrics displayMetrics = new DisplayMetrics();
-				WindowManager wm = (WindowManager) instance.getApplicationContext().getSystemService(Context.WINDOW_SERVICE);
-				wm.getDefaultDisplay().getRealMetrics(displayMetrics);
-
-				instance.scroll(inputContext, x, y, displayMetrics.heightPixels / 2);
+				instance.scroll(inputContext, x, y, instance.getDisplayHeight() / 2);
 			}
 		} catch (Exception e) {
 			// instance probably null
@@ -371,8 +481,11 @@ public class InputService extends AccessibilityService {
             Log.d(TAG, "onKeyEvent: keysym 0x" + Long.toHexString(keysym) + " down " + down + " by client " + client);
         }
 
+		// so that all checks below only need to handle the Latin-1 keysyms for these
+		keysym = KeysymTable.normalize(keysym);
+
 		try {
-			InputContext inputContext = instance.mInputContexts.get(client);
+			InputContext inputContext = instance.getInputContext(client);
 
 			if(inputContext == null) {
 				throw new IllegalStateException("Client " + client + " was not added or is already removed");
@@ -465,165 +578,15 @@ public class InputService extends AccessibilityService {
 					/*
 						Translate RFB/X11 key sym to Android key code.
 					 */
-					int keyCode = KeyEvent.KEYCODE_UNKNOWN;
-
+					int entry = KeysymTable.lookup(keysym);
+					int keyCode = KeysymTable.getKeyCode(entry);
 					/*
-						First, non-character keys
-					 */
-					//  Left/Right
-					if (keysym == 0xff51) keyCode = KeyEvent.KEYCODE_DPAD_LEFT;
-					if (keysym == 0xff53) keyCode = KeyEvent.KEYCODE_DPAD_RIGHT;
-					//  Up/Down
-					if (keysym == 0xff52) keyCode = KeyEvent.KEYCODE_DPAD_UP;
-					if (keysym == 0xff54) keyCode = KeyEvent.KEYCODE_DPAD_DOWN;
-					// Backspace/Delete
-					if (keysym == 0xff08) keyCode = KeyEvent.KEYCODE_DEL;
-					if (keysym == 0xffff) keyCode = KeyEvent.KEYCODE_FORWARD_DEL;
-					// Insert
-					if (keysym == 0xff63) keyCode = KeyEvent.KEYCODE_INSERT;
-					// Enter
-					if (keysym == 0xff0d) keyCode = KeyEvent.KEYCODE_ENTER;
-					// Tab
-					if (keysym == 0xff09) keyCode = KeyEvent.KEYCODE_TAB;
-					// PageUp/PageDown - the AccessibilityNodeInfo approach does not have this
-					if (keysym == 0xff55) keyCode = KeyEvent.KEYCODE_PAGE_UP;
-					if (keysym == 0xff56) keyCode = KeyEvent.KEYCODE_PAGE_DOWN;
-					// Function keys - the AccessibilityNodeInfo approach does not have this
-					if (keysym == 0xffbe) keyCode = KeyEvent.KEYCODE_F1;
-					if (keysym == 0xffbf) keyCode = KeyEvent.KEYCODE_F2;
-					if (keysym == 0xffc0) keyCode = KeyEvent.KEYCODE_F3;
-					if (keysym == 0xffc1) keyCode = KeyEvent.KEYCODE_F4;
-					if (keysym == 0xffc2) keyCode = KeyEvent.KEYCODE_F5;
-					if (keysym == 0xffc3) keyCode = KeyEvent.KEYCODE_F6;
-					if (keysym == 0xffc4) keyCode = KeyEvent.KEYCODE_F7;
-					if (keysym == 0xffc5) keyCode = KeyEvent.KEYCODE_F8;
-					if (keysym == 0xffc6) keyCode = KeyEvent.KEYCODE_F9;
-					if (keysym == 0xffc7) keyCode = KeyEvent.KEYCODE_F10;
-					if (keysym == 0xffc8) keyCode = KeyEvent.KEYCODE_F11;
-					if (keysym == 0xffc9) keyCode = KeyEvent.KEYCODE_F12;
-					// Numpad keys
-					if (keysym == 0xff8d) keyCode = KeyEvent.KEYCODE_NUMPAD_ENTER;
-					if (keysym == 0xffaa) keyCode = KeyEvent.KEYCODE_NUMPAD_MULTIPLY;
-					if (keysym == 0xffab) keyCode = KeyEvent.KEYCODE_NUMPAD_ADD;
-					if (keysym == 0xffac) keyCode = KeyEvent.KEYCODE_NUMPAD_COMMA;
-					if (keysym == 0xffad) keyCode = KeyEvent.KEYCODE_NUMPAD_SUBTRACT;
-					if (keysym == 0xffae) keyCode = KeyEvent.KEYCODE_NUMPAD_DOT;
-					if (keysym == 0xffaf) keyCode = KeyEvent.KEYCODE_NUMPAD_DIVIDE;
-					if (keysym == 0xffb0) keyCode = KeyEvent.KEYCODE_NUMPAD_0;
-					if (keysym == 0xffb1) keyCode = KeyEvent.KEYCODE_NUMPAD_1;
-					if (keysym == 0xffb2) keyCode = KeyEvent.KEYCODE_NUMPAD_2;
-					if (keysym == 0xffb3) keyCode = KeyEvent.KEYCODE_NUMPAD_3;
-					if (keysym == 0xffb4) keyCode = KeyEvent.KEYCODE_NUMPAD_4;
-					if (keysym == 0xffb5) keyCode = KeyEvent.KEYCODE_NUMPAD_5;
-					if (keysym == 0xffb6) keyCode = KeyEvent.KEYCODE_NUMPAD_6;
-					if (keysym == 0xffb7) keyCode = KeyEvent.KEYCODE_NUMPAD_7;
-					if (keysym == 0xffb8) keyCode = KeyEvent.KEYCODE_NUMPAD_8;
-					if (keysym == 0xffb9) keyCode = KeyEvent.KEYCODE_NUMPAD_9;
-
-					/*
-					    ASCII input, we use a translation to KeyEvents w/ keycodes as some apps
-					    don't eat the ones with characters only.
-					    Android internally uses a US keyboard layout, so for some incoming keysyms
-					    we have to generate the right output with an additional Shift operation
-					    that is sometimes, but not always present on the sending side: this means
+					    For ASCII input, we use a translation to KeyEvents w/ keycodes as some apps
+					    don't eat the ones with characters only. The Shift that is sometimes needed
+					    for the US keyboard layout Android uses internally comes from the table,
 					    we don't use Shift key state from the sending side for keysyms 0x20 to 0x7e.
 					 */
-					boolean doShift = false;
-					if (keysym == 0x20) keyCode = KeyEvent.KEYCODE_SPACE;
-					if (keysym == 0x21) { keyCode = KeyEvent.KEYCODE_1; doShift = true; } // '!' is generated by '1' w/ Shift
-					if (keysym == 0x22) { keyCode = KeyEvent.KEYCODE_APOSTROPHE; doShift = true; }// '"' is generated by ''' w/ Shift
-					if (keysym == 0x23) keyCode = KeyEvent.KEYCODE_POUND;
-					if (keysym == 0x24) { keyCode = KeyEvent.KEYCODE_4; doShift = true; } // '$' is generated by '4' w/ Shift
-					if (keysym == 0x25) { keyCode = KeyEvent.KEYCODE_5; doShift = true; } // '%' is generated by '5' w/ Shift
-					if (keysym == 0x26) { keyCode = KeyEvent.KEYCODE_7; doShift = true; } // '&' is generated by '7' w/ Shift
-					if (keysym == 0x27) keyCode = KeyEvent.KEYCODE_APOSTROPHE;
-					if (keysym == 0x28) { keyCode = KeyEvent.KEYCODE_9; doShift = true; } // '(' is generated by '9' w/ Shift
-					if (keysym == 0x29) { keyCode = KeyEvent.KEYCODE_0; doShift = true; } // ')' is generated by '0' w/ Shift
-					if (keysym == 0x2A) keyCode = KeyEvent.KEYCODE_STAR;
-					if (keysym == 0x2B) keyCode = KeyEvent.KEYCODE_PLUS;
-					if (keysym == 0x2C) keyCode = KeyEvent.KEYCODE_COMMA;
-					if (keysym == 0x2D) keyCode = KeyEvent.KEYCODE_MINUS;
-					if (keysym == 0x2E) keyCode = KeyEvent.KEYCODE_PERIOD;
-					if (keysym == 0x2F) keyCode = KeyEvent.KEYCODE_SLASH;
-					if (keysym == 0x30) keyCode = KeyEvent.KEYCODE_0;
-					if (keysym == 0x31) keyCode = KeyEvent.KEYCODE_1;
-					if (keysym == 0x32) keyCode = KeyEvent.KEYCODE_2;
-					if (keysym == 0x33) keyCode = KeyEvent.KEYCODE_3;
-					if (keysym == 0x34) keyCode = KeyEvent.KEYCODE_4;
-					if (keysym == 0x35) keyCode = KeyEvent.KEYCODE_5;
-					if (keysym == 0x36) keyCode = KeyEvent.KEYCODE_6;
-					if (keysym == 0x37) keyCode = KeyEvent.KEYCODE_7;
-					if (keysym == 0x38) keyCode = KeyEvent.KEYCODE_8;
-					if (keysym == 0x39) keyCode = KeyEvent.KEYCODE_9;
-					if (keysym == 0x3A) { keyCode = KeyEvent.KEYCODE_SEMICOLON; doShift = true; } // ':' is generated by ';' w/ Shift
-					if (keysym == 0x3B) keyCode = KeyEvent.KEYCODE_SEMICOLON;
-					if (keysym == 0x3C) { keyCode = KeyEvent.KEYCODE_COMMA; doShift = true; } // '<' is generated by ',' w/ Shift
-					if (keysym == 0x3D) keyCode = KeyEvent.KEYCODE_EQUALS;
-					if (keysym == 0x3E) { keyCode = KeyEvent.KEYCODE_PERIOD; doShift = true; } // '>' is generated by '.' w/ Shift
-					if (keysym == 0x3F) { keyCode = KeyEvent.KEYCODE_SLASH; doShift = true; } // '?' is generated by '/' w/ Shift
-					if (keysym == 0x40) keyCode = KeyEvent.KEYCODE_AT;
-					if (keysym == 0x41) { keyCode = KeyEvent.KEYCODE_A; doShift = true; } // 'A' is generated by 'a' w/ Shift
-					if (keysym == 0x42) { keyCode = KeyEvent.KEYCODE_B; doShift = true; } // 'B' is generated by 'b' w/ Shift
-					if (keysym == 0x43) { keyCode = KeyEvent.KEYCODE_C; doShift = true; } // 'C' is generated by 'c' w/ Shift
-					if (keysym == 0x44) { keyCode = KeyEvent.KEYCODE_D; doShift = true; } // 'D' is generated by 'd' w/ Shift
-					if (keysym == 0x45) { keyCode = KeyEvent.KEYCODE_E; doShift = true; } // 'E' is generated by 'e' w/ Shift
-					if (keysym == 0x46) { keyCode = KeyEvent.KEYCODE_F; doShift = true; } // 'F' is generated by 'f' w/ Shift
-					if (keysym == 0x47) { keyCode = KeyEvent.KEYCODE_G; doShift = true; } // 'G' is generated by 'g' w/ Shift
-					if (keysym == 0x48) { keyCode = KeyEvent.KEYCODE_H; doShift = true; } // 'H' is generated by 'h' w/ Shift
-					if (keysym == 0x49) { keyCode = KeyEvent.KEYCODE_I; doShift = true; } // 'I' is generated by 'i' w/ Shift
-					if (keysym == 0x4A) { keyCode = KeyEvent.KEYCODE_J; doShift = true; } // 'J' is generated by 'j' w/ Shift
-					if (keysym == 0x4B) { keyCode = KeyEvent.KEYCODE_K; doShift = true; } // 'K' is generated by 'k' w/ Shift
-					if (keysym == 0x4C) { keyCode = KeyEvent.KEYCODE_L; doShift = true; } // 'L' is generated by 'l' w/ Shift
-					if (keysym == 0x4D) { keyCode = KeyEvent.KEYCODE_M; doShift = true; } // 'M' is generated by 'm' w/ Shift
-					if (keysym == 0x4E) { keyCode = KeyEvent.KEYCODE_N; doShift = true; } // 'N' is generated by 'n' w/ Shift
-					if (keysym == 0x4F) { keyCode = KeyEvent.KEYCODE_O; doShift = true; } // 'O' is generated by 'o' w/ Shift
-					if (keysym == 0x50) { keyCode = KeyEvent.KEYCODE_P; doShift = true; } // 'P' is generated by 'p' w/ Shift
-					if (keysym == 0x51) { keyCode = KeyEvent.KEYCODE_Q; doShift = true; } // 'Q' is generated by 'q' w/ Shift
-					if (keysym == 0x52) { keyCode = KeyEvent.KEYCODE_R; doShift = true; } // 'R' is generated by 'r' w/ Shift
-					if (keysym == 0x53) { keyCode = KeyEvent.KEYCODE_S; doShift = true; } // 'S' is generated by 's' w/ Shift
-					if (keysym == 0x54) { keyCode = KeyEvent.KEYCODE_T; doShift = true; } // 'T' is generated by 't' w/ Shift
-					if (keysym == 0x55) { keyCode = KeyEvent.KEYCODE_U; doShift = true; } // 'U' is generated by 'u' w/ Shift
-					if (keysym == 0x56) { keyCode = KeyEvent.KEYCODE_V; doShift = true; } // 'V' is generated by 'v' w/ Shift
-					if (keysym == 0x57) { keyCode = KeyEvent.KEYCODE_W; doShift = true; } // 'W' is generated by 'w' w/ Shift
-					if (keysym == 0x58) { keyCode = KeyEvent.KEYCODE_X; doShift = true; } // 'X' is generated by 'x' w/ Shift
-					if (keysym == 0x59) { keyCode = KeyEvent.KEYCODE_Y; doShift = true; } // 'Y' is generated by 'y' w/ Shift
-					if (keysym == 0x5A) { keyCode = KeyEvent.KEYCODE_Z; doShift = true; } // 'Z' is generated by 'z' w/ Shift
-					if (keysym == 0x5B) keyCode = KeyEvent.KEYCODE_LEFT_BRACKET;
-					if (keysym == 0x5C) keyCode = KeyEvent.KEYCODE_BACKSLASH;
-					if (keysym == 0x5D) keyCode = KeyEvent.KEYCODE_RIGHT_BRACKET;
-					if (keysym == 0x5E) { keyCode = KeyEvent.KEYCODE_6; doShift = true; } // '^' is generated by '6' w/ Shift
-					if (keysym == 0x5F) { keyCode = KeyEvent.KEYCODE_MINUS; doShift = true; } // '_' is generated by '-' w/ Shift
-					if (keysym == 0x60) keyCode = KeyEvent.KEYCODE_GRAVE;
-					if (keysym == 0x61) keyCode = KeyEvent.KEYCODE_A;
-					if (keysym == 0x62) keyCode = KeyEvent.KEYCODE_B;
-					if (keysym == 0x63) keyCode = KeyEvent.KEYCODE_C;
-					if (keysym == 0x64) keyCode = KeyEvent.KEYCODE_D;
-					if (keysym == 0x65) keyCode = KeyEvent.KEYCODE_E;
-					if (keysym == 0x66) keyCode = KeyEvent.KEYCODE_F;
-					if (keysym == 0x67) keyCode = KeyEvent.KEYCODE_G;
-					if (keysym == 0x68) keyCode = KeyEvent.KEYCODE_H;
-					if (keysym == 0x69) keyCode = KeyEvent.KEYCODE_I;
-					if (keysym == 0x6A) keyCode = KeyEvent.KEYCODE_J;
-					if (keysym == 0x6B) keyCode = KeyEvent.KEYCODE_K;
-					if (keysym == 0x6C) keyCode = KeyEvent.KEYCODE_L;
-					if (keysym == 0x6D) keyCode = KeyEvent.KEYCODE_M;
-					if (keysym == 0x6E) keyCode = KeyEvent.KEYCODE_N;
-					if (keysym == 0x6F) keyCode = KeyEvent.KEYCODE_O;
-					if (keysym == 0x70) keyCode = KeyEvent.KEYCODE_P;
-					if (keysym == 0x71) keyCode = KeyEvent.KEYCODE_Q;
-					if (keysym == 0x72) keyCode = KeyEvent.KEYCODE_R;
-					if (keysym == 0x73) keyCode = KeyEvent.KEYCODE_S;
-					if (keysym == 0x74) keyCode = KeyEvent.KEYCODE_T;
-					if (keysym == 0x75) keyCode = KeyEvent.KEYCODE_U;
-					if (keysym == 0x76) keyCode = KeyEvent.KEYCODE_V;
-					if (keysym == 0x77) keyCode = KeyEvent.KEYCODE_W;
-					if (keysym == 0x78) keyCode = KeyEvent.KEYCODE_X;
-					if (keysym == 0x79) keyCode = KeyEvent.KEYCODE_Y;
-					if (keysym == 0x7A) keyCode = KeyEvent.KEYCODE_Z;
-					if (keysym == 0x7B) { keyCode = KeyEvent.KEYCODE_LEFT_BRACKET; doShift = true; } // '{' is generated by '[' w/ Shift
-					if (keysym == 0x7C) { keyCode = KeyEvent.KEYCODE_BACKSLASH; doShift = true; } // '|' is generated by '\' w/ Shift
-					if (keysym == 0x7D) { keyCode = KeyEvent.KEYCODE_RIGHT_BRACKET; doShift = true; } // '}' is generated by ']' w/ Shift
-					if (keysym == 0x7E) { keyCode = KeyEvent.KEYCODE_GRAVE; doShift = true; } // '~' is generated by '`' w/ Shift
+					boolean doShift = KeysymTable.needsShift(entry);
 
 					KeyEvent keyEvent = new KeyEvent(
 							SystemClock.uptimeMillis(),
@@ -637,11 +600,12 @@ public class InputService extends AccessibilityService {
 					);
 
 					/*
-						Rest of ISO-8859-1 input using KeyEvent from characters.
+						Rest of ISO-8859-1 and Unicode input using KeyEvent from characters.
 						API does not allow setting meta state for these.
 					 */
-					if (keysym >= 0xa0 && keysym <= 0xff && down != 0) {
-						keyEvent = new KeyEvent(SystemClock.uptimeMillis(), Character.toString((char) keysym), 0, 0);
+					int codePoint = KeysymTable.toCodePoint(keysym);
+					if (codePoint >= 0xa0 && down != 0) {
+						keyEvent = new KeyEvent(SystemClock.uptimeMillis(), new String(Character.toChars(codePoint)), 0, 0);
 					}
 
 					/*
@@ -859,9 +823,10 @@ public class InputService extends AccessibilityService {
 			}
 
 			/*
-			    ISO-8859-1 input
+			    ISO-8859-1 and Unicode input
 			 */
-			if (keysym >= 32 && keysym <= 255 && down != 0) {
+			int codePoint = KeysymTable.toCodePoint(keysym);
+			if (codePoint >= 32 && down != 0) {
 				CharSequence currentFocusText = Objects.requireNonNull(currentFocusNode).getText();
 				// some implementations return null for empty text, work around that
 				if (currentFocusText == null)
@@ -880,14 +845,15 @@ public class InputService extends AccessibilityService {
 					textAfterCursor = String.valueOf(currentFocusText.subSequence(cursorPos, currentFocusText.length()));
 				} catch (IndexOutOfBoundsException ignored) {
 				}
-				String newFocusText = textBeforeCursor + (char) keysym + textAfterCursor;
+				String chars = new String(Character.toChars(codePoint));
+				String newFocusText = textBeforeCursor + chars + textAfterCursor;
 
 				Bundle action = new Bundle();
 				action.putCharSequence(AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE, newFocusText);
 				currentFocusNode.performAction(AccessibilityNodeInfo.AccessibilityAction.ACTION_SET_TEXT.getId(), action);
 
 				// ACTION_SET_TEXT moves cursor to the end, move cursor back to where it should be
-				setCursorPos(currentFocusNode, cursorPos > 0 ? cursorPos + 1 : 1);
+				setCursorPos(currentFocusNode, cursorPos > 0 ? cursorPos + chars.length() : chars.length());
 			}
 
 		} catch (Exception e) {
@@ -931,44 +897,54 @@ public class InputService extends AccessibilityService {
 					@Override
 					public void onSuccess(@NonNull ScreenshotResult screenshot) {
 						try {
-							// create hardware bitmap from HardwareBuffer
-							Bitmap bitmap = Bitmap.wrapHardwareBuffer(screenshot.getHardwareBuffer(), screenshot.getColorSpace());
-							// create software bitmap from hardware bitmap to be able to use copyPixelsToBuffer()
-							bitmap = Objects.requireNonNull(bitmap).copy(Bitmap.Config.ARGB_8888, false);
-							// apply scaling. fast NOP when scaling == 1.0
-							bitmap = Bitmap.createScaledBitmap(bitmap,
-									(int) (bitmap.getWidth() * scaling),
-									(int) (bitmap.getHeight() * scaling),
-									true); // use filter as this makes text more readable, we're slow in this mode anyway
-
-							ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Objects.requireNonNull(bitmap).getByteCount());
-							bitmap.copyPixelsToBuffer(byteBuffer);
-
-							// if needed, setup a new VNC framebuffer that matches the new buffer's dimensions
-							if (bitmap.getWidth() != MainService.vncGetFramebufferWidth() || bitmap.getHeight() != MainService.vncGetFramebufferHeight())
-								MainService.vncNewFramebuffer(bitmap.getWidth(), bitmap.getHeight());
-
-							// Bitmap buffers are contiguous (no padding), so rowStride = width * 4 bytes per pixel
-							MainService.vncUpdateFramebuffer(byteBuffer, bitmap.getWidth() * 4);
+							HardwareBuffer hardwareBuffer = screenshot.getHardwareBuffer();
+							int scaledWidth = (int) (hardwareBuffer.getWidth() * scaling);
+							int scaledHeight = (int) (hardwareBuffer.getHeight() * scaling);
+
+							// if needed, setup a new VNC framebuffer that matches the scaled dimensions
+							if (scaledWidth != MainService.vncGetFramebufferWidth() || scaledHeight != MainService.vncGetFramebufferHeight())
+								MainService.vncNewFramebuffer(scaledWidth, scaledHeight);
+
+							// lock and scale into the framebuffer natively, without any allocations
+							if (!instance.mIsScreenShotCopyNeeded && !MainService.vncUpdateFramebufferFromHardwareBuffer(hardwareBuffer)) {
+								Log.w(TAG, "takeScreenShots: cannot read screenshot natively, falling back to copying");
+								instance.mIsScreenShotCopyNeeded = true;
+							}
+
+							if (instance.mIsScreenShotCopyNeeded) {
+								// create hardware bitmap from HardwareBuffer
+								Bitmap bitmap = Bitmap.wrapHardwareBuffer(hardwareBuffer, screenshot.getColorSpace());
+								// create software bitmap in the framebuffer's pixel format from hardware bitmap to be able to use copyPixelsToBuffer()
+								boolean rgb565 = PreferenceManager.getDefaultSharedPreferences(instance).getBoolean(Constants.PREFS_KEY_SERVER_LAST_RGB565, new Defaults(instance).getRgb565());
+								bitmap = Objects.requireNonNull(bitmap).copy(rgb565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888, false);
+								// apply scaling. fast NOP when scaling == 1.0
+								bitmap = Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, true); // use filter as this makes text more readable, we're slow in this mode anyway
+
+								// reuse buffer across screenshots
+								if (instance.mScreenShotCopyBuffer == null || instance.mScreenShotCopyBuffer.capacity() < bitmap.getByteCount())
+									instance.mScreenShotCopyBuffer = ByteBuffer.allocateDirect(bitmap.getByteCount());
+								instance.mScreenShotCopyBuffer.clear();
+								bitmap.copyPixelsToBuffer(instance.mScreenShotCopyBuffer);
+
+								// Bitmap buffers are contiguous (no padding), so rowStride = bytes per row
+								MainService.vncUpdateFramebuffer(instance.mScreenShotCopyBuffer, bitmap.getRowBytes(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+							}
 
 							// important, otherwise getting "A resource failed to call close." warnings from System
-							screenshot.getHardwareBuffer().close();
+							hardwareBuffer.close();
 
 							// further screenshots
 							if (instance.mTakeScreenShotCallback != null) {
-								// try again later, using but not incrementing delay
-								instance.mMainHandler.postDelayed(() ->
-										{
-											try {
-												instance.takeScreenshot(displayId,
-														instance.getMainExecutor(),
-														this);
-											} catch (Exception ignored) {
-												// instance might be gone
-											}
-										},
-										this, // use instance.mTakeScreenShotCallback as token
-										instance.mTakeScreenShotDelayMs);
+								int delayMs;
+								if (MainService.vncIsUpdateRequested()) {
+									// probe towards the minimum
+									instance.mTakeScreenShotDelayMs = Math.max(instance.mTakeScreenShotDelayMs - TAKE_SCREEN_SHOT_DELAY_MS_DECREASE, TAKE_SCREEN_SHOT_DELAY_MS_MIN);
+									delayMs = instance.mTakeScreenShotDelayMs;
+								} else {
+									// nobody is waiting, slow down
+									delayMs = Math.max(instance.mTakeScreenShotDelayMs, TAKE_SCREEN_SHOT_DELAY_MS_IDLE);
+								}
+								instance.scheduleScreenShot(displayId, this, delayMs);
 							} else {
 								Log.d(TAG, "takeScreenShots: stop");
 							}
@@ -981,17 +957,9 @@ public class InputService extends AccessibilityService {
 					public void onFailure(int errorCode) {
 						try {
 							if (errorCode == AccessibilityService.ERROR_TAKE_SCREENSHOT_INTERVAL_TIME_SHORT && instance.mTakeScreenShotCallback != null) {
-								// try again later, incrementing delay
-								instance.mMainHandler.postDelayed(() -> {
-									try {
-										instance.takeScreenshot(displayId,
-												instance.getMainExecutor(),
-												this
-										);
-									} catch (Exception ignored) {
-										// instance might be gone
-									}
-								}, this, instance.mTakeScreenShotDelayMs += 50); // use instance.mTakeScreenShotCallback as token
+								// try again later, backing off
+								instance.mTakeScreenShotDelayMs = Math.min(instance.mTakeScreenShotDelayMs * 2, TAKE_SCREEN_SHOT_DELAY_MS_MAX);
+								instance.scheduleScreenShot(displayId, this, instance.mTakeScreenShotDelayMs);
 								Log.w(TAG, "takeScreenShots: onFailure with ERROR_TAKE_SCREENSHOT_INTERVAL_TIME_SHORT - upped delay to " + instance.mTakeScreenShotDelayMs);
 								return;
 							}
@@ -1006,6 +974,7 @@ public class InputService extends AccessibilityService {
 
 				// first screenshot
 				Log.d(TAG, "takeScreenShots: start");
+				instance.mTakeScreenShotEffectiveDelayMs = instance.mTakeScreenShotDelayMs;
 				instance.takeScreenshot(displayId,
 						instance.getMainExecutor(),
 						instance.mTakeScreenShotCallback
@@ -1016,6 +985,7 @@ public class InputService extends AccessibilityService {
 				instance.mMainHandler.removeCallbacksAndMessages(instance.mTakeScreenShotCallback);
 				instance.mTakeScreenShotCallback = null;
 				instance.mTakeScreenShotDelayMs = TAKE_SCREEN_SHOT_DELAY_MS_INITIAL;
+				instance.mTakeScreenShotEffectiveDelayMs = 0;
 			}
 		} catch (Exception e) {
 			Log.e(TAG, "takeScreenShots: exception " + e);
@@ -1030,10 +1000,68 @@ public class InputService extends AccessibilityService {
 		}
 	}
 
+	/**
+	 * Get the delay currently used between fallback screen capture screenshots.
+	 * @return Delay in milliseconds, 0 if not taking screenshots.
+	 */
+	public static int getScreenShotDelayMs() {
+		try {
+			return instance.mTakeScreenShotEffectiveDelayMs;
+		} catch (Exception ignored) {
+			return 0;
+		}
+	}
+
+	@RequiresApi(api = Build.VERSION_CODES.R)
+	private void scheduleScreenShot(int displayId, TakeScreenshotCallback callback, int delayMs) {
+		if (delayMs != mTakeScreenShotEffectiveDelayMs && BuildConfig.DEBUG)
+			Log.d(TAG, "scheduleScreenShot: delay now " + delayMs + "ms");
+		mTakeScreenShotEffectiveDelayMs = delayMs;
+		mMainHandler.postDelayed(() -> {
+					try {
+						takeScreenshot(displayId, getMainExecutor(), callback);
+					} catch (Exception ignored) {
+						// instance might be gone
+					}
+				},
+				callback, // use mTakeScreenShotCallback as token
+				delayMs);
+	}
+
+	private InputContext getInputContext(long client) {
+		synchronized (mInputContexts) {
+			return mInputContexts.get(client);
+		}
+	}
+
+	private int getInputContextCount() {
+		synchronized (mInputContexts) {
+			return mInputContexts.size();
+		}
+	}
+
+	/**
+	 * Real height of the default display, only queried again after a configuration change.
+	 */
+	private int getDisplayHeight() {
+		int height = mDisplayHeight;
+		if (height == 0) {
+			WindowManager wm = (WindowManager) getApplicationContext().getSystemService(Context.WINDOW_SERVICE);
+			synchronized (mDisplayMetrics) {
+				wm.getDefaultDisplay().getRealMetrics(mDisplayMetrics);
+				height = mDisplayMetrics.heightPixels;
+			}
+			mDisplayHeight = height;
+		}
+		return height;
+	}
+
 	private void startStroke(InputContext inputContext, int x, int y) {
 		inputContext.path.reset();
 		inputContext.path.moveTo( x, y );
 		inputContext.lastGestureStartTime = SystemClock.elapsedRealtime();
+		inputContext.strokeCoalesceMs = pointerCoalesceMs >= 0 ? pointerCoalesceMs : getFrameIntervalMs(inputContext.getDisplayId());
+		inputContext.isStrokeMotionPending = false;
 		// On API level 26 and newer, we can submit the stroke via multiple gestures, one per
 		// continued stroke. Reset the stroke here to mark the start of a stroke which will be
 		// continued in continueStroke() or ended in endStroke()
@@ -1043,36 +1071,110 @@ public class InputService extends AccessibilityService {
 		}
 	}
 
-	private void continueStroke(InputContext inputContext, int x, int y) {
+	/**
+	 * Returns the gesture to dispatch once the context's lock is released, null if none.
+	 */
+	private GestureDescription continueStroke(InputContext inputContext, int x, int y) {
 		inputContext.path.lineTo(x, y);
+		inputContext.strokeX = x;
+		inputContext.strokeY = y;
 		// On API level 26 and newer, we can dispatch the stroke via multiple gestures.
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-			long currentTime = SystemClock.elapsedRealtime();
-			long duration = currentTime - inputContext.lastGestureStartTime;
-			// if passing 0, getting "IllegalArgumentException: Duration must be positive"
-			if (duration == 0) duration = 1;
-
-			// Either create a new stroke if this is the first continueStroke() after startStroke()
-			// or create a continued stroke.
-			if (inputContext.stroke == null) {
-				inputContext.stroke = new GestureDescription.StrokeDescription(inputContext.path, 0, duration, true);
-			} else {
-				inputContext.stroke = inputContext.stroke.continueStroke(inputContext.path, 0, duration, true);
+			// Coalesce motion: every point goes into the path so the stroke keeps its shape,
+			// but the path is only dispatched once per coalescing window. A high-rate mouse
+			// would otherwise cause one gesture dispatch per event.
+			long sinceLastGesture = SystemClock.elapsedRealtime() - inputContext.lastGestureStartTime;
+			if (sinceLastGesture < inputContext.strokeCoalesceMs) {
+				if (!inputContext.isStrokeMotionPending) {
+					inputContext.isStrokeMotionPending = true;
+					mMainHandler.postDelayed(inputContext.strokeFlush, inputContext.strokeCoalesceMs - sinceLastGesture);
+				}
+				return null;
 			}
+			return buildContinuedStroke(inputContext);
+		}
+		return null;
+	}
 
-			// and dispatch it to OS
-			dispatchStrokeAsGesture(inputContext.stroke, inputContext.getDisplayId());
+	/// Build a gesture from the path collected since the last gesture as a stroke that is continued later on
+	@RequiresApi(api = Build.VERSION_CODES.O)
+	private GestureDescription buildContinuedStroke(InputContext inputContext) {
+		mMainHandler.removeCallbacks(inputContext.strokeFlush);
+		inputContext.isStrokeMotionPending = false;
 
-			// start a new gesture
-			inputContext.lastGestureStartTime = currentTime;
+		long currentTime = SystemClock.elapsedRealtime();
+		long duration = currentTime - inputContext.lastGestureStartTime;
+		// if passing 0, getting "IllegalArgumentException: Duration must be positive"
+		if (duration == 0) duration = 1;
 
-			// start a new path
-			inputContext.path.reset();
-			inputContext.path.moveTo(x, y);
+		// Either create a new stroke if this is the first continueStroke() after startStroke()
+		// or create a continued stroke.
+		if (inputContext.stroke == null) {
+			inputContext.stroke = new GestureDescription.StrokeDescription(inputContext.path, 0, duration, true);
+		} else {
+			inputContext.stroke = inputContext.stroke.continueStroke(inputContext.path, 0, duration, true);
 		}
+
+		// wrap it up for dispatching to the OS
+		GestureDescription gesture = buildStrokeGesture(inputContext.stroke, inputContext.getDisplayId());
+
+		// start a new gesture
+		inputContext.lastGestureStartTime = currentTime;
+
+		// start a new path
+		inputContext.path.reset();
+		inputContext.path.moveTo(inputContext.strokeX, inputContext.strokeY);
+
+		return gesture;
 	}
 
-	private void endStroke(InputContext inputContext, int x, int y) {
+	/// Runs on the main thread when motion was coalesced but no further event came in to dispatch it
+	private void flushStroke(InputContext inputContext) {
+		GestureDescription gesture = null;
+		synchronized (inputContext) {
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && inputContext.isButtonOneDown && inputContext.isStrokeMotionPending) {
+				if (inputContext.isStrokeDispatching) {
+					// don't block the main thread on the worker's dispatch, try again later on
+					mMainHandler.postDelayed(inputContext.strokeFlush, inputContext.strokeCoalesceMs);
+					return;
+				}
+				gesture = buildContinuedStroke(inputContext);
+				inputContext.isStrokeDispatching = true;
+			}
+		}
+		if (gesture != null) {
+			dispatchStrokeGesture(inputContext, gesture);
+		}
+	}
+
+	/// Dispatch a stroke gesture built under the context's lock, letting the next part of the stroke go after it
+	private void dispatchStrokeGesture(InputContext inputContext, GestureDescription gesture) {
+		try {
+			dispatchGesture(gesture, null, null);
+		} finally {
+			synchronized (inputContext) {
+				inputContext.isStrokeDispatching = false;
+				inputContext.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Duration of one frame on the given display, assuming 60 Hz if unknown.
+	 */
+	private long getFrameIntervalMs(int displayId) {
+		Display display = ((DisplayManager) getSystemService(Context.DISPLAY_SERVICE)).getDisplay(displayId);
+		float refreshRate = display != null ? display.getRefreshRate() : 0;
+		return Math.round(1000 / (refreshRate > 0 ? refreshRate : 60f));
+	}
+
+	/**
+	 * Returns the gesture to dispatch once the context's lock is released.
+	 */
+	private GestureDescription endStroke(InputContext inputContext, int x, int y) {
+		// coalesced motion is part of the path and thus goes out with the final gesture
+		mMainHandler.removeCallbacks(inputContext.strokeFlush);
+		inputContext.isStrokeMotionPending = false;
 		inputContext.path.lineTo( x, y );
 		long duration = SystemClock.elapsedRealtime() - inputContext.lastGestureStartTime;
 		// gesture ended very very shortly after start (< 1ms). make it 1ms to get dispatched to the system
@@ -1092,11 +1194,11 @@ public class InputService extends AccessibilityService {
 			inputContext.stroke = new GestureDescription.StrokeDescription(inputContext.path, 0, duration);
 		}
 
-		dispatchStrokeAsGesture(inputContext.stroke, inputContext.getDisplayId());
+		return buildStrokeGesture(inputContext.stroke, inputContext.getDisplayId());
 	}
 
-	/// Dispatch the given stroke to the OS, display-specific starting at API level 30
-	private void dispatchStrokeAsGesture(GestureDescription.StrokeDescription stroke, int displayId) {
+	/// Build a gesture for dispatching the given stroke to the OS, display-specific starting at API level 30
+	private GestureDescription buildStrokeGesture(GestureDescription.StrokeDescription stroke, int displayId) {
 		GestureDescription.Builder builder = new GestureDescription.Builder();
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
 			builder.setDisplayId(displayId);
@@ -1104,7 +1206,7 @@ public class InputService extends AccessibilityService {
 		builder.addStroke(stroke);
 		// Docs says: Any gestures currently in progress, whether from the user, this service, or another service, will be cancelled.
 		// But at least on API level 32, setting different display ids with the builder allows for parallel input.
-		dispatchGesture(builder.build(), null, null);
+		return builder.build();
 	}
 
 
@@ -1130,7 +1232,8 @@ public class InputService extends AccessibilityService {
 
 	private static GestureDescription createClick(InputContext inputContext,  int x, int y, int duration )
 	{
-		Path clickPath = new Path();
+		Path clickPath = inputContext.gesturePath;
+		clickPath.reset();
 		clickPath.moveTo( x, y );
 		GestureDescription.StrokeDescription clickStroke = new GestureDescription.StrokeDescription( clickPath, 0, duration );
 		GestureDescription.Builder clickBuilder = new GestureDescription.Builder();
@@ -1143,7 +1246,8 @@ public class InputService extends AccessibilityService {
 
 	private static GestureDescription createSwipe(InputContext inputContext, int x1, int y1, int x2, int y2, int duration )
 	{
-		Path swipePath = new Path();
+		Path swipePath = inputContext.gesturePath;
+		swipePath.reset();
 
 		x1 = Math.max(x1, 0);
 		y1 = Math.max(y1, 0);
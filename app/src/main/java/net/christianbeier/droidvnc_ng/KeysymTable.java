@@ -0,0 +1,185 @@
+/*
+ * DroidVNC-NG RFB keysym to Android key code translation.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2020 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package net.christianbeier.droidvnc_ng;
+
+import android.view.KeyEvent;
+
+/**
+ * Translates RFB/X11 keysyms to Android key codes via lookup tables for the two keysym
+ * ranges that have key codes: Latin-1 at 0x0000 to 0x00FF and function keys at 0xFF00 to 0xFFFF.
+ * Unicode keysyms (0x01000000 + code point) of Latin-1 characters are folded into the former.
+ */
+final class KeysymTable {
+
+    private static final int UNICODE_KEYSYM_OFFSET = 0x01000000;
+    private static final int MAX_CODE_POINT = 0x10FFFF;
+
+    /*
+        Entries are key code shifted left by one, with the lowest bit set if Shift needs to be
+        added to generate the keysym on Android's internal US keyboard layout. 0 means no key code.
+     */
+    private static final int[] LATIN1 = new int[0x100];
+    private static final int[] FUNCTION = new int[0x100];
+
+    static {
+        /*
+            Non-character keys
+         */
+        // Left/Right
+        putFunction(0xff51, KeyEvent.KEYCODE_DPAD_LEFT);
+        putFunction(0xff53, KeyEvent.KEYCODE_DPAD_RIGHT);
+        // Up/Down
+        putFunction(0xff52, KeyEvent.KEYCODE_DPAD_UP);
+        putFunction(0xff54, KeyEvent.KEYCODE_DPAD_DOWN);
+        // Backspace/Delete
+        putFunction(0xff08, KeyEvent.KEYCODE_DEL);
+        putFunction(0xffff, KeyEvent.KEYCODE_FORWARD_DEL);
+        // Insert
+        putFunction(0xff63, KeyEvent.KEYCODE_INSERT);
+        // Enter
+        putFunction(0xff0d, KeyEvent.KEYCODE_ENTER);
+        // Tab
+        putFunction(0xff09, KeyEvent.KEYCODE_TAB);
+        // PageUp/PageDown
+        putFunction(0xff55, KeyEvent.KEYCODE_PAGE_UP);
+        putFunction(0xff56, KeyEvent.KEYCODE_PAGE_DOWN);
+        // Function keys F1 to F12 are consecutive in both
+        for (int i = 0; i < 12; ++i) {
+            putFunction(0xffbe + i, KeyEvent.KEYCODE_F1 + i);
+        }
+        // Numpad keys
+        putFunction(0xff8d, KeyEvent.KEYCODE_NUMPAD_ENTER);
+        putFunction(0xffaa, KeyEvent.KEYCODE_NUMPAD_MULTIPLY);
+        putFunction(0xffab, KeyEvent.KEYCODE_NUMPAD_ADD);
+        putFunction(0xffac, KeyEvent.KEYCODE_NUMPAD_COMMA);
+        putFunction(0xffad, KeyEvent.KEYCODE_NUMPAD_SUBTRACT);
+        putFunction(0xffae, KeyEvent.KEYCODE_NUMPAD_DOT);
+        putFunction(0xffaf, KeyEvent.KEYCODE_NUMPAD_DIVIDE);
+        for (int i = 0; i < 10; ++i) {
+            putFunction(0xffb0 + i, KeyEvent.KEYCODE_NUMPAD_0 + i);
+        }
+
+        /*
+            ASCII input. Android internally uses a US keyboard layout, so for some keysyms
+            we have to generate the right output with an additional Shift operation
+            that is sometimes, but not always present on the sending side.
+         */
+        putLatin1(' ', KeyEvent.KEYCODE_SPACE, false);
+        putLatin1('!', KeyEvent.KEYCODE_1, true);
+        putLatin1('"', KeyEvent.KEYCODE_APOSTROPHE, true);
+        putLatin1('#', KeyEvent.KEYCODE_POUND, false);
+        putLatin1('$', KeyEvent.KEYCODE_4, true);
+        putLatin1('%', KeyEvent.KEYCODE_5, true);
+        putLatin1('&', KeyEvent.KEYCODE_7, true);
+        putLatin1('\'', KeyEvent.KEYCODE_APOSTROPHE, false);
+        putLatin1('(', KeyEvent.KEYCODE_9, true);
+        putLatin1(')', KeyEvent.KEYCODE_0, true);
+        putLatin1('*', KeyEvent.KEYCODE_STAR, false);
+        putLatin1('+', KeyEvent.KEYCODE_PLUS, false);
+        putLatin1(',', KeyEvent.KEYCODE_COMMA, false);
+        putLatin1('-', KeyEvent.KEYCODE_MINUS, false);
+        putLatin1('.', KeyEvent.KEYCODE_PERIOD, false);
+        putLatin1('/', KeyEvent.KEYCODE_SLASH, false);
+        for (int i = 0; i < 10; ++i) {
+            putLatin1('0' + i, KeyEvent.KEYCODE_0 + i, false);
+        }
+        putLatin1(':', KeyEvent.KEYCODE_SEMICOLON, true);
+        putLatin1(';', KeyEvent.KEYCODE_SEMICOLON, false);
+        putLatin1('<', KeyEvent.KEYCODE_COMMA, true);
+        putLatin1('=', KeyEvent.KEYCODE_EQUALS, false);
+        putLatin1('>', KeyEvent.KEYCODE_PERIOD, true);
+        putLatin1('?', KeyEvent.KEYCODE_SLASH, true);
+        putLatin1('@', KeyEvent.KEYCODE_AT, false);
+        // letters are consecutive in both, upper case is generated by lower case w/ Shift
+        for (int i = 0; i < 26; ++i) {
+            putLatin1('A' + i, KeyEvent.KEYCODE_A + i, true);
+            putLatin1('a' + i, KeyEvent.KEYCODE_A + i, false);
+        }
+        putLatin1('[', KeyEvent.KEYCODE_LEFT_BRACKET, false);
+        putLatin1('\\', KeyEvent.KEYCODE_BACKSLASH, false);
+        putLatin1(']', KeyEvent.KEYCODE_RIGHT_BRACKET, false);
+        putLatin1('^', KeyEvent.KEYCODE_6, true);
+        putLatin1('_', KeyEvent.KEYCODE_MINUS, true);
+        putLatin1('`', KeyEvent.KEYCODE_GRAVE, false);
+        putLatin1('{', KeyEvent.KEYCODE_LEFT_BRACKET, true);
+        putLatin1('|', KeyEvent.KEYCODE_BACKSLASH, true);
+        putLatin1('}', KeyEvent.KEYCODE_RIGHT_BRACKET, true);
+        putLatin1('~', KeyEvent.KEYCODE_GRAVE, true);
+    }
+
+    private KeysymTable() {}
+
+    private static void putLatin1(int keysym, int keyCode, boolean shift) {
+        LATIN1[keysym] = keyCode << 1 | (shift ? 1 : 0);
+    }
+
+    private static void putFunction(int keysym, int keyCode) {
+        FUNCTION[keysym & 0xff] = keyCode << 1;
+    }
+
+    /**
+     * Returns the Latin-1 keysym for Unicode keysyms of Latin-1 characters, all others unchanged.
+     * Clients may send either for the same character.
+     */
+    static long normalize(long keysym) {
+        if (keysym >= UNICODE_KEYSYM_OFFSET && keysym <= UNICODE_KEYSYM_OFFSET + 0xff) {
+            return keysym - UNICODE_KEYSYM_OFFSET;
+        }
+        return keysym;
+    }
+
+    /**
+     * Returns the table entry for the given normalized keysym, to be decoded with
+     * {@link #getKeyCode(int)} and {@link #needsShift(int)}.
+     */
+    static int lookup(long keysym) {
+        if (keysym >= 0 && keysym <= 0xff) {
+            return LATIN1[(int) keysym];
+        }
+        if (keysym >= 0xff00 && keysym <= 0xffff) {
+            return FUNCTION[(int) keysym & 0xff];
+        }
+        return 0;
+    }
+
+    static int getKeyCode(int entry) {
+        return entry == 0 ? KeyEvent.KEYCODE_UNKNOWN : entry >>> 1;
+    }
+
+    static boolean needsShift(int entry) {
+        return (entry & 1) != 0;
+    }
+
+    /**
+     * Returns the character the given normalized keysym stands for if it is a Latin-1 or
+     * Unicode keysym, -1 otherwise.
+     */
+    static int toCodePoint(long keysym) {
+        if (keysym >= 0 && keysym <= 0xff) {
+            return (int) keysym;
+        }
+        if (keysym >= UNICODE_KEYSYM_OFFSET && keysym <= UNICODE_KEYSYM_OFFSET + MAX_CODE_POINT) {
+            return (int) (keysym - UNICODE_KEYSYM_OFFSET);
+        }
+        return -1;
+    }
+}
@@ -143,6 +143,8 @@ public class MainActivity extends AppCompatActivity {
             intent.putExtra(MainService.EXTRA_VIEW_ONLY, prefs.getBoolean(Constants.PREFS_KEY_SETTINGS_VIEW_ONLY, mDefaults.getViewOnly()));
             intent.putExtra(MainService.EXTRA_SHOW_POINTERS, prefs.getBoolean(Constants.PREFS_KEY_SETTINGS_SHOW_POINTERS, mDefaults.getShowPointers()));
             intent.putExtra(MainService.EXTRA_SCALING, prefs.getFloat(Constants.PREFS_KEY_SETTINGS_SCALING, mDefaults.getScaling()));
+            intent.putExtra(MainService.EXTRA_MAX_FPS, prefs.getInt(Constants.PREFS_KEY_SETTINGS_MAX_FPS, mDefaults.getMaxFps()));
+            intent.putExtra(MainService.EXTRA_RGB565, prefs.getBoolean(Constants.PREFS_KEY_SETTINGS_RGB565, mDefaults.getRgb565()));
             intent.putExtra(MainService.EXTRA_ACCESS_KEY, prefs.getString(Constants.PREFS_KEY_SETTINGS_ACCESS_KEY, mDefaults.getAccessKey()));
             if(mIsMainServiceRunning) {
                 intent.setAction(MainService.ACTION_STOP);
@@ -560,6 +562,47 @@ public class MainActivity extends AppCompatActivity {
             ed.apply();
         });
 
+        final EditText maxFps = findViewById(R.id.settings_max_fps);
+        maxFps.setText(String.valueOf(prefs.getInt(Constants.PREFS_KEY_SETTINGS_MAX_FPS, mDefaults.getMaxFps())));
+        maxFps.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+                try {
+                    SharedPreferences.Editor ed = prefs.edit();
+                    ed.putInt(Constants.PREFS_KEY_SETTINGS_MAX_FPS, Integer.parseInt(charSequence.toString()));
+                    ed.apply();
+                } catch(NumberFormatException e) {
+                    // nop
+                }
+            }
+
+            @Override
+            public void afterTextChanged(Editable editable) {
+                if(maxFps.getText().length() == 0) {
+                    // reset to default
+                    maxFps.setHint(String.valueOf(mDefaults.getMaxFps()));
+                    // and remove preference
+                    SharedPreferences.Editor ed = prefs.edit();
+                    ed.remove(Constants.PREFS_KEY_SETTINGS_MAX_FPS);
+                    ed.apply();
+                }
+            }
+        });
+        // move cursor to end of text
+        maxFps.setOnFocusChangeListener((v, hasFocus) -> maxFps.setSelection(maxFps.getText().length()));
+
+        final SwitchMaterial rgb565 = findViewById(R.id.settings_rgb565);
+        rgb565.setChecked(prefs.getBoolean(Constants.PREFS_KEY_SETTINGS_RGB565, mDefaults.getRgb565()));
+        rgb565.setOnCheckedChangeListener((compoundButton, b) -> {
+            SharedPreferences.Editor ed = prefs.edit();
+            ed.putBoolean(Constants.PREFS_KEY_SETTINGS_RGB565, b);
+            ed.apply();
+        });
+
         final SwitchMaterial showPointers = findViewById(R.id.settings_show_pointers);
         showPointers.setChecked(prefs.getBoolean(Constants.PREFS_KEY_SETTINGS_SHOW_POINTERS, mDefaults.getShowPointers()));
         showPointers.setOnCheckedChangeListener((compoundButton, b) -> {
@@ -1045,6 +1088,8 @@ public class MainActivity extends AppCompatActivity {
         findViewById(R.id.settings_password).setEnabled(false);
         findViewById(R.id.settings_access_key).setEnabled(false);
         findViewById(R.id.settings_scaling).setEnabled(false);
+        findViewById(R.id.settings_max_fps).setEnabled(false);
+        findViewById(R.id.settings_rgb565).setEnabled(false);
         findViewById(R.id.settings_view_only).setEnabled(false);
         findViewById(R.id.settings_file_transfer).setEnabled(false);
         findViewById(R.id.settings_show_pointers).setEnabled(false);
@@ -1075,6 +1120,8 @@ public class MainActivity extends AppCompatActivity {
         findViewById(R.id.settings_password).setEnabled(true);
         findViewById(R.id.settings_access_key).setEnabled(true);
         findViewById(R.id.settings_scaling).setEnabled(true);
+        findViewById(R.id.settings_max_fps).setEnabled(true);
+        findViewById(R.id.settings_rgb565).setEnabled(true);
         findViewById(R.id.settings_view_only).setEnabled(true);
         findViewById(R.id.settings_file_transfer).setEnabled(true);
         if(!((SwitchMaterial)findViewById(R.id.settings_view_only)).isChecked()) {
@@ -33,6 +33,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ServiceInfo;
+import android.hardware.HardwareBuffer;
+import android.media.Image;
 import android.net.ConnectivityManager;
 import android.net.LinkAddress;
 import android.net.LinkProperties;
@@ -68,6 +70,7 @@ import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.LinkedHashSet;
@@ -99,6 +102,9 @@ public class MainService extends Service {
     public static final String EXTRA_VIEW_ONLY = "net.christianbeier.droidvnc_ng.EXTRA_VIEW_ONLY";
     public static final String EXTRA_SHOW_POINTERS = "net.christianbeier.droidvnc_ng.EXTRA_SHOW_POINTERS";
     public static final String EXTRA_SCALING = "net.christianbeier.droidvnc_ng.EXTRA_SCALING";
+    public static final String EXTRA_MAX_FPS = "net.christianbeier.droidvnc_ng.EXTRA_MAX_FPS";
+    public static final String EXTRA_RGB565 = "net.christianbeier.droidvnc_ng.EXTRA_RGB565";
+    public static final String EXTRA_POINTER_COALESCE_MS = "net.christianbeier.droidvnc_ng.EXTRA_POINTER_COALESCE_MS";
     /**
      * Only used on Android 12 and earlier.
      */
@@ -236,6 +242,25 @@ public class MainService extends Service {
         }
     };
 
+    /*
+        Pointer and key events are queued by the native side in a ring and injected by a single
+        dispatcher thread, so that slow input injection does not block reading from clients.
+        Offsets and size are the ones of the native inputEvent struct.
+     */
+    private static final int INPUT_EVENT_POINTER = 1;
+    private static final int INPUT_EVENT_KEY = 2;
+    private static final int INPUT_EVENT_OFFSET_TYPE = 0;
+    private static final int INPUT_EVENT_OFFSET_MASK = 4;
+    private static final int INPUT_EVENT_OFFSET_X = 8;
+    private static final int INPUT_EVENT_OFFSET_Y = 12;
+    private static final int INPUT_EVENT_OFFSET_CLIENT = 16;
+    private static final int INPUT_EVENT_OFFSET_KEYSYM = 24;
+    private static final int INPUT_EVENT_SIZE = 40;
+    // how long the dispatcher waits for events before checking whether it should stop
+    private static final int INPUT_EVENT_WAIT_MS = 250;
+    private Thread mInputEventDispatcher;
+    private volatile boolean mInputEventDispatcherStopped;
+
     private boolean mIsStopping;
     // service is stopping on OUR initiative, NOT by stopService()
     private boolean mIsStoppingByUs;
@@ -272,7 +297,7 @@ public class MainService extends Service {
     }
 
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
-    private native boolean vncStartServer(int width, int height, String listenInterface, int port, String desktopName, String password, String httpRootDir);
+    private native boolean vncStartServer(int width, int height, int bitsPerPixel, String listenInterface, int port, String desktopName, String password, String httpRootDir);
     private native boolean vncStopServer();
     private native boolean vncIsActive();
     private native String vncGetBoundIPv4();
@@ -281,14 +306,23 @@ public class MainService extends Service {
     private native long vncConnectReverse(String host, int port);
     private native long vncConnectRepeater(String host, int port, String repeaterIdentifier);
     static native boolean vncNewFramebuffer(int width, int height);
-    static native boolean vncUpdateFramebuffer(ByteBuffer buf, int rowStride);
+    static native boolean vncUpdateFramebuffer(ByteBuffer buf, int rowStride, int cropX, int cropY, int cropWidth, int cropHeight);
+    static native boolean vncUpdateFramebufferFromImage(Image image, ByteBuffer buf, int rowStride);
+    static native boolean vncUpdateFramebufferFromHardwareBuffer(HardwareBuffer hardwareBuffer);
+    static native void vncReleaseFramebufferImage();
     static native int vncGetFramebufferWidth();
     static native int vncGetFramebufferHeight();
+    static native long vncGetFramebufferAllocationCount();
+    static native boolean vncIsUpdateRequested();
     static native void vncSendCutText(String text);
     private native String vncGetRemoteHost(long client);
     private native int vncGetDestinationPort(long client);
     private native String vncGetRepeaterId(long client);
     private native boolean vncDisconnect(long client);
+    private native boolean vncSetClientScaling(long client, float scaling);
+    private native long[] vncGetClientLinkEstimate(long client);
+    private static native ByteBuffer vncGetInputEventRing();
+    private static native int vncWaitForInputEvents(int timeoutMs);
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -403,7 +437,11 @@ public class MainService extends Service {
         mOutboundClientReconnectHandler.removeCallbacksAndMessages(null);
 
         stopScreenCapture();
+        // the capture thread calls into the native framebuffer functions, make sure it's done before freeing
+        MediaProjectionService.stopCaptureAndWait();
         vncStopServer();
+        // after the server is stopped, so no client waits for room in the ring anymore
+        stopInputEventDispatcher();
         instance = null;
     }
 
@@ -492,6 +530,7 @@ public class MainService extends Service {
 
                 boolean status = vncStartServer(displayMetrics.widthPixels,
                         displayMetrics.heightPixels,
+                        PreferenceManager.getDefaultSharedPreferences(this).getBoolean(Constants.PREFS_KEY_SERVER_LAST_RGB565, mDefaults.getRgb565()) ? 16 : 32,
                         listenInterface,
                         port,
                         name,
@@ -504,6 +543,7 @@ public class MainService extends Service {
 
                 if (status) {
                     MainServicePersistData.saveLastActiveState(this, true);
+                    startInputEventDispatcher();
                     startScreenCapture();
                     registerNSD(name, port);
                     updateNotification(true);
@@ -541,6 +581,7 @@ public class MainService extends Service {
                 String name = Utils.getDeviceName(this);
                 boolean status = vncStartServer(displayMetrics.widthPixels,
                         displayMetrics.heightPixels,
+                        PreferenceManager.getDefaultSharedPreferences(this).getBoolean(Constants.PREFS_KEY_SERVER_LAST_RGB565, mDefaults.getRgb565()) ? 16 : 32,
                         listenInterface,
                         port,
                         name,
@@ -554,6 +595,7 @@ public class MainService extends Service {
 
                 if(status) {
                     MainServicePersistData.saveLastActiveState(this, true);
+                    startInputEventDispatcher();
                     startScreenCapture();
                     registerNSD(name, port);
                     updateNotification(true);
@@ -605,9 +647,13 @@ public class MainService extends Service {
             SharedPreferences.Editor ed = prefs.edit();
             ed.putBoolean(Constants.PREFS_KEY_INPUT_LAST_ENABLED, !intent.getBooleanExtra(EXTRA_VIEW_ONLY, prefs.getBoolean(Constants.PREFS_KEY_SETTINGS_VIEW_ONLY, mDefaults.getViewOnly())));
             ed.putFloat(Constants.PREFS_KEY_SERVER_LAST_SCALING, intent.getFloatExtra(EXTRA_SCALING, prefs.getFloat(Constants.PREFS_KEY_SETTINGS_SCALING, mDefaults.getScaling())));
+            ed.putInt(Constants.PREFS_KEY_SERVER_LAST_MAX_FPS, intent.getIntExtra(EXTRA_MAX_FPS, prefs.getInt(Constants.PREFS_KEY_SETTINGS_MAX_FPS, mDefaults.getMaxFps())));
+            ed.putBoolean(Constants.PREFS_KEY_SERVER_LAST_RGB565, intent.getBooleanExtra(EXTRA_RGB565, prefs.getBoolean(Constants.PREFS_KEY_SETTINGS_RGB565, mDefaults.getRgb565())));
+            ed.putInt(Constants.PREFS_KEY_SERVER_LAST_POINTER_COALESCE_MS, intent.getIntExtra(EXTRA_POINTER_COALESCE_MS, mDefaults.getPointerCoalesceMs()));
             ed.apply();
-            // also set new value for InputService
+            // also set new values for InputService
             InputService.scaling = PreferenceManager.getDefaultSharedPreferences(this).getFloat(Constants.PREFS_KEY_SERVER_LAST_SCALING, new Defaults(this).getScaling());
+            InputService.pointerCoalesceMs = PreferenceManager.getDefaultSharedPreferences(this).getInt(Constants.PREFS_KEY_SERVER_LAST_POINTER_COALESCE_MS, new Defaults(this).getPointerCoalesceMs());
 
             // Step 1: check input/start-on-boot permission
             InputRequestActivity.requestIfNeededAndPostResult(this,
@@ -636,6 +682,7 @@ public class MainService extends Service {
                     long client = 0;
                     try {
                         client = instance.vncConnectReverse(intent.getStringExtra(EXTRA_HOST), intent.getIntExtra(EXTRA_PORT, mDefaults.getPortReverse()));
+                        applyClientScaling(intent, client);
                     } catch (NullPointerException ignored) {
                     }
                     Intent answer = new Intent(ACTION_CONNECT_REVERSE);
@@ -664,6 +711,7 @@ public class MainService extends Service {
                                 intent.getStringExtra(EXTRA_HOST),
                                 intent.getIntExtra(EXTRA_PORT, mDefaults.getPortRepeater()),
                                 intent.getStringExtra(EXTRA_REPEATER_ID));
+                        applyClientScaling(intent, client);
                     } catch (NullPointerException ignored) {
                     }
                     Intent answer = new Intent(ACTION_CONNECT_REPEATER);
@@ -691,7 +739,8 @@ public class MainService extends Service {
                         vncGetRemoteHost(client),
                         vncGetDestinationPort(client) < 0 ? null : vncGetDestinationPort(client),
                         vncGetRepeaterId(client),
-                        null
+                        null,
+                        vncGetClientLinkEstimate(client)
                 ))));
 
                 mOutboundClientsToReconnect.forEach((key, value) -> clientList.insertOrUpdate(new ClientList.Client(
@@ -699,7 +748,8 @@ public class MainService extends Service {
                         value.intent.getStringExtra(MainService.EXTRA_HOST),
                         value.intent.getIntExtra(MainService.EXTRA_PORT, value.intent.getStringExtra(MainService.EXTRA_REPEATER_ID) != null ? mDefaults.getPortRepeater() : mDefaults.getPortReverse()),
                         value.intent.getStringExtra(MainService.EXTRA_REPEATER_ID),
-                        value.intent.getStringExtra(MainService.EXTRA_REQUEST_ID)
+                        value.intent.getStringExtra(MainService.EXTRA_REQUEST_ID),
+                        value.client != 0 ? vncGetClientLinkEstimate(value.client) : null
                 )));
 
                 // Send explicit Intent
@@ -773,6 +823,7 @@ public class MainService extends Service {
         try {
             instance.mWakeLock.acquire();
             Utils.withLock(instance.mConnectedClientsLock.writeLock(), () -> instance.mConnectedClients.add(client));
+            MediaProjectionService.onClientCountChanged();
             instance.updateNotification(false);
             // showing pointers depends on view-only being false
             Intent startIntent = Objects.requireNonNull(MainServicePersistData.loadStartIntent(instance));
@@ -800,6 +851,7 @@ public class MainService extends Service {
         try {
             instance.mWakeLock.release();
             Utils.withLock(instance.mConnectedClientsLock.writeLock(), () -> instance.mConnectedClients.remove(client));
+            MediaProjectionService.onClientCountChanged();
             if(!instance.mIsStopping) {
                 // don't show notifications when clients are disconnected on orderly server shutdown
                 instance.updateNotification(false);
@@ -834,6 +886,21 @@ public class MainService extends Service {
         }
     }
 
+    /**
+     * Have an outbound client get its own scaled-down framebuffer if the connect intent asks for it.
+     * Clients at the same scale share one scaled copy of the framebuffer.
+     */
+    private void applyClientScaling(Intent connectIntent, long client) {
+        if (client == 0 || !connectIntent.hasExtra(EXTRA_SCALING))
+            return;
+        float scaling = connectIntent.getFloatExtra(EXTRA_SCALING, 1.0f);
+        if (scaling <= 0 || scaling >= 1)
+            return;
+        Log.d(TAG, "applyClientScaling: scaling client " + client + " by " + scaling);
+        if (!vncSetClientScaling(client, scaling))
+            Log.w(TAG, "applyClientScaling: could not scale client " + client);
+    }
+
     private void handleClientReconnect(Intent reconnectIntent, long client, String logTag) {
 
         final Intent intent = new IntentSanitizer.Builder()
@@ -846,6 +913,7 @@ public class MainService extends Service {
                 .allowExtra(EXTRA_HOST, String.class)
                 .allowExtra(EXTRA_PORT, Integer.class)
                 .allowExtra(EXTRA_REPEATER_ID, String.class)
+                .allowExtra(EXTRA_SCALING, Float.class)
                 .build()
                 .sanitizeByFiltering(reconnectIntent);
 
@@ -911,6 +979,82 @@ public class MainService extends Service {
         }
     }
 
+    private void startInputEventDispatcher() {
+        mInputEventDispatcherStopped = false;
+        mInputEventDispatcher = new Thread(this::dispatchInputEvents, "InputEventDispatcher");
+        mInputEventDispatcher.start();
+    }
+
+    private void stopInputEventDispatcher() {
+        if (mInputEventDispatcher == null) {
+            return;
+        }
+        mInputEventDispatcherStopped = true;
+        try {
+            mInputEventDispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mInputEventDispatcher = null;
+    }
+
+    /**
+     * Drains the native input event ring in batches, handing the events to the InputService in order.
+     */
+    @WorkerThread
+    private void dispatchInputEvents() {
+        ByteBuffer ring = vncGetInputEventRing().order(ByteOrder.nativeOrder());
+        int ringSize = ring.capacity() / INPUT_EVENT_SIZE;
+        int index = 0;
+
+        while (!mInputEventDispatcherStopped) {
+            int count = vncWaitForInputEvents(INPUT_EVENT_WAIT_MS);
+            for (int i = 0; i < count; ++i) {
+                int offset = index * INPUT_EVENT_SIZE;
+                long client = ring.getLong(offset + INPUT_EVENT_OFFSET_CLIENT);
+                index = (index + 1) % ringSize;
+                // events queued by a client that disconnected in the meantime
+                if (!isClientConnected(client)) {
+                    continue;
+                }
+                switch (ring.getInt(offset + INPUT_EVENT_OFFSET_TYPE)) {
+                    case INPUT_EVENT_POINTER:
+                        InputService.onPointerEvent(
+                                ring.getInt(offset + INPUT_EVENT_OFFSET_MASK),
+                                ring.getInt(offset + INPUT_EVENT_OFFSET_X),
+                                ring.getInt(offset + INPUT_EVENT_OFFSET_Y),
+                                client);
+                        break;
+                    case INPUT_EVENT_KEY:
+                        InputService.onKeyEvent(
+                                ring.getInt(offset + INPUT_EVENT_OFFSET_MASK),
+                                ring.getLong(offset + INPUT_EVENT_OFFSET_KEYSYM),
+                                client);
+                        break;
+                    default:
+                        Log.w(TAG, "dispatchInputEvents: unknown event type " + ring.getInt(offset + INPUT_EVENT_OFFSET_TYPE));
+                }
+            }
+        }
+    }
+
+    /**
+     * Checked for every input event, thus neither boxing the client nor capturing it in a lambda.
+     */
+    private boolean isClientConnected(long client) {
+        mConnectedClientsLock.readLock().lock();
+        try {
+            for (int i = 0; i < mConnectedClients.size(); ++i) {
+                if (mConnectedClients.get(i) == client) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            mConnectedClientsLock.readLock().unlock();
+        }
+    }
+
     private void startScreenCapture() {
         if (mResultCode != 0 && mResultData != null) {
             Log.d(TAG, "startScreenCapture: using MediaProjection backend");
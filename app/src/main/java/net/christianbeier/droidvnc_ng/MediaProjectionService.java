@@ -24,11 +24,12 @@ package net.christianbeier.droidvnc_ng;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ServiceInfo;
 import android.content.res.Configuration;
-import android.graphics.Bitmap;
 import android.graphics.PixelFormat;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
@@ -37,7 +38,12 @@ import android.media.ImageReader;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Display;
@@ -48,19 +54,44 @@ import androidx.preference.PreferenceManager;
 
 import java.nio.ByteBuffer;
 import java.util.Objects;
+import java.util.function.Consumer;
 
 public class MediaProjectionService extends Service {
 
     private static final String TAG = "MediaProjectionService";
+    private static final long HELD_IMAGE_CHECK_MIN_INTERVAL_MILLIS = 5;
+    private static final long HELD_IMAGE_CHECK_MAX_INTERVAL_MILLIS = 80;
+    private static final int QUEUE_TIME_STATS_FRAMES = 300;
+    // well below the main thread's ANR timeouts, vncStopServer() waits for the rest if needed
+    private static final long CAPTURE_THREAD_QUIT_TIMEOUT_MILLIS = 1000;
 
     private int mResultCode;
     private Intent mResultData;
     private ImageReader mImageReader;
     private VirtualDisplay mVirtualDisplay;
-    private MediaProjection mMediaProjection;
+    private volatile MediaProjection mMediaProjection;
     private MediaProjection.Callback mMediaProjectionCallback;
     private MediaProjectionManager mMediaProjectionManager;
 
+    /*
+        All capture state below is only touched on the capture thread.
+     */
+    private HandlerThread mCaptureThread;
+    private Handler mCaptureHandler;
+    // set on the main thread once the capture thread is told to quit, nothing can be posted to it anymore
+    private volatile boolean mIsCaptureThreadQuitting;
+    private long mMinFrameIntervalMillis;
+    private long mLastFrameMillis;
+    private Runnable mPendingFrame;
+    private Image mHeldImage;
+    private Runnable mHeldImageCheck;
+    private long mHeldImageCheckIntervalMillis;
+    private boolean mIsCaptureSuspended;
+    private BroadcastReceiver mScreenStateReceiver;
+    private long mQueueTimeSumNanos;
+    private long mQueueTimeMaxNanos;
+    private int mQueueTimeFrames;
+
     private boolean mHasPortraitInLandscapeWorkaroundApplied;
     private boolean mHasPortraitInLandscapeWorkaroundSet;
 
@@ -78,6 +109,14 @@ public class MediaProjectionService extends Service {
 
         instance = this;
 
+        /*
+            Image listener, MediaProjection callbacks and (re)starting capture all run on a
+            dedicated thread so that frames don't queue up behind whatever the main thread does
+         */
+        mCaptureThread = new HandlerThread("CaptureThread", Process.THREAD_PRIORITY_DISPLAY);
+        mCaptureThread.start();
+        mCaptureHandler = new Handler(mCaptureThread.getLooper());
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             /*
                 Create notification channel
@@ -137,6 +176,21 @@ public class MediaProjectionService extends Service {
                 Log.d(TAG, "callback: onCapturedContentVisibilityChanged " + isVisible);
             }
         };
+
+        /*
+            Suspend capture while the screen is off
+         */
+        mScreenStateReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Log.d(TAG, "mScreenStateReceiver: " + intent.getAction());
+                updateCaptureSuspension();
+            }
+        };
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        ContextCompat.registerReceiver(this, mScreenStateReceiver, filter, null, mCaptureHandler, ContextCompat.RECEIVER_NOT_EXPORTED);
     }
 
 
@@ -147,7 +201,7 @@ public class MediaProjectionService extends Service {
         DisplayMetrics displayMetrics = Utils.getDisplayMetrics(this, Display.DEFAULT_DISPLAY);
         Log.d(TAG, "onConfigurationChanged: width: " + displayMetrics.widthPixels + " height: " + displayMetrics.heightPixels);
 
-        startScreenCapture();
+        mCaptureHandler.post(this::startScreenCapture);
     }
 
 
@@ -155,11 +209,46 @@ public class MediaProjectionService extends Service {
     public void onDestroy() {
         Log.d(TAG, "onDestroy");
 
-        stopScreenCapture();
+        unregisterReceiver(mScreenStateReceiver);
+
+        quitCaptureThread();
 
         instance = null;
     }
 
+    /**
+     * Stops capture and waits for the capture thread to exit, so that no native framebuffer
+     * function is called by it anymore once this returns. The wait is bounded, as the capture thread
+     * might wait for slow clients reading frames; vncStopServer() then waits for it to leave native
+     * code after having disconnected the clients. Does nothing if not running.
+     * Must be called on the main thread.
+     */
+    static void stopCaptureAndWait() {
+        MediaProjectionService service = instance;
+        if (service != null) {
+            service.quitCaptureThread();
+        }
+    }
+
+    private void quitCaptureThread() {
+        if (mCaptureThread == null) {
+            return;
+        }
+        // capture thread quits after having stopped capture
+        mCaptureHandler.post(this::stopScreenCapture);
+        mIsCaptureThreadQuitting = true;
+        mCaptureThread.quitSafely();
+        try {
+            mCaptureThread.join(CAPTURE_THREAD_QUIT_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mCaptureThread.isAlive()) {
+            Log.w(TAG, "quitCaptureThread: capture thread did not quit within " + CAPTURE_THREAD_QUIT_TIMEOUT_MILLIS + " ms");
+        }
+        mCaptureThread = null;
+    }
+
 
 
     @Override
@@ -168,7 +257,7 @@ public class MediaProjectionService extends Service {
         mResultCode = intent.getIntExtra(MainService.EXTRA_MEDIA_PROJECTION_REQUEST_RESULT_CODE, 0);
         mResultData = intent.getParcelableExtra(MainService.EXTRA_MEDIA_PROJECTION_REQUEST_RESULT_DATA);
 
-        startScreenCapture();
+        mCaptureHandler.post(this::startScreenCapture);
 
         // in case of a crash, we will be restarted by MainService
         return START_NOT_STICKY;
@@ -180,7 +269,7 @@ public class MediaProjectionService extends Service {
         if(mMediaProjection == null)
             try {
                 mMediaProjection = mMediaProjectionManager.getMediaProjection(mResultCode, mResultData);
-                Objects.requireNonNull(mMediaProjection).registerCallback(mMediaProjectionCallback, null);
+                Objects.requireNonNull(mMediaProjection).registerCallback(mMediaProjectionCallback, mCaptureHandler);
             } catch (SecurityException e) {
                 Log.w(TAG, "startScreenCapture: got SecurityException", e);
                 // tell MainService, it will take care of stopping us and maybe use a fallback
@@ -192,21 +281,32 @@ public class MediaProjectionService extends Service {
             }
 
         // restart case
+        cancelPendingFrame();
         if (mImageReader != null) {
             //  Important: detach image reader's surface from virtual display before closing
             if (mVirtualDisplay != null) {
                 mVirtualDisplay.setSurface(null);
             }
+            // the framebuffer might still be backed by one of the reader's images
+            MainService.vncReleaseFramebufferImage();
             mImageReader.close();
         }
 
         final DisplayMetrics metrics = Utils.getDisplayMetrics(this, Display.DEFAULT_DISPLAY);
 
+        // apply selected frame rate cap
+        int maxFps = PreferenceManager.getDefaultSharedPreferences(this).getInt(Constants.PREFS_KEY_SERVER_LAST_MAX_FPS, new Defaults(this).getMaxFps());
+        mMinFrameIntervalMillis = maxFps > 0 ? 1000 / maxFps : 0;
+
         // apply selected scaling
         float scaling = PreferenceManager.getDefaultSharedPreferences(this).getFloat(Constants.PREFS_KEY_SERVER_LAST_SCALING, new Defaults(this).getScaling());
         int scaledWidth = (int) (metrics.widthPixels * scaling);
         int scaledHeight = (int) (metrics.heightPixels * scaling);
 
+        // apply selected pixel format, the server's framebuffer was set up accordingly
+        boolean rgb565 = PreferenceManager.getDefaultSharedPreferences(this).getBoolean(Constants.PREFS_KEY_SERVER_LAST_RGB565, new Defaults(this).getRgb565());
+        final int pixelFormat = rgb565 ? PixelFormat.RGB_565 : PixelFormat.RGBA_8888;
+
         // only set this by detecting quirky hardware if the user has not set manually
         if(!mHasPortraitInLandscapeWorkaroundSet && Build.FINGERPRINT.contains("rk3288")  && metrics.widthPixels > 800) {
             Log.w(TAG, "detected >10in rk3288 applying workaround for portrait-in-landscape quirk");
@@ -222,44 +322,24 @@ public class MediaProjectionService extends Service {
             final int quirkyLandscapeWidth = (int)((float)scaledHeight/portraitInsideLandscapeScaleFactor);
             final int quirkyLandscapeHeight = (int)((float)scaledWidth/portraitInsideLandscapeScaleFactor);
 
-            mImageReader = ImageReader.newInstance(quirkyLandscapeWidth, quirkyLandscapeHeight, PixelFormat.RGBA_8888, 2);
-            mImageReader.setOnImageAvailableListener(imageReader -> {
-                try (Image image = imageReader.acquireLatestImage()) {
-
-                    if (image == null)
-                        return;
-
+            mImageReader = ImageReader.newInstance(quirkyLandscapeWidth, quirkyLandscapeHeight, pixelFormat, 2);
+            mImageReader.setOnImageAvailableListener(rateLimited(onDemand(image -> {
+                try (image) {
                     final Image.Plane[] planes = image.getPlanes();
                     final ByteBuffer buffer = planes[0].getBuffer();
-                    int pixelStride = planes[0].getPixelStride();
                     int rowStride = planes[0].getRowStride();
-                    int rowPadding = rowStride - pixelStride * quirkyLandscapeWidth;
-                    int w = quirkyLandscapeWidth + rowPadding / pixelStride;
-
-                    // create destination Bitmap
-                    Bitmap dest = Bitmap.createBitmap(w, quirkyLandscapeHeight, Bitmap.Config.ARGB_8888);
-
-                    // copy landscape buffer to dest bitmap
-                    buffer.rewind();
-                    dest.copyPixelsFromBuffer(buffer);
-
-                    // get the portrait portion that's in the center of the landscape bitmap
-                    Bitmap croppedDest = Bitmap.createBitmap(dest, quirkyLandscapeWidth / 2 - scaledWidth / 2, 0, scaledWidth, scaledHeight);
-                    dest.recycle();
-
-                    ByteBuffer croppedBuffer = ByteBuffer.allocateDirect(scaledWidth * scaledHeight * 4);
-                    croppedDest.copyPixelsToBuffer(croppedBuffer);
-                    croppedDest.recycle();
 
-                    // if needed, setup a new VNC framebuffer that matches the new buffer's dimensions
+                    // if needed, setup a new VNC framebuffer that matches the cropped dimensions
                     if (scaledWidth != MainService.vncGetFramebufferWidth() || scaledHeight != MainService.vncGetFramebufferHeight())
                         MainService.vncNewFramebuffer(scaledWidth, scaledHeight);
 
-                    // croppedBuffer is contiguous (no padding), so rowStride = width * 4 bytes per pixel
-                    MainService.vncUpdateFramebuffer(croppedBuffer, scaledWidth * 4);
+                    buffer.rewind();
+
+                    // copy the portrait portion that's in the center of the landscape image
+                    MainService.vncUpdateFramebuffer(buffer, rowStride, quirkyLandscapeWidth / 2 - scaledWidth / 2, 0, scaledWidth, scaledHeight);
                 } catch (Exception ignored) {
                 }
-            }, null);
+            })), mCaptureHandler);
 
             try {
                 if(mVirtualDisplay == null) {
@@ -278,6 +358,10 @@ public class MediaProjectionService extends Service {
                 return;
             }
 
+            // detach again right away if there's nobody to capture for
+            mIsCaptureSuspended = false;
+            updateCaptureSuspension();
+
             // tell MainService that MediaProjection is up
             postResult(true);
             return;
@@ -286,27 +370,32 @@ public class MediaProjectionService extends Service {
         /*
             This is the default behaviour.
          */
-        mImageReader = ImageReader.newInstance(scaledWidth, scaledHeight, PixelFormat.RGBA_8888, 2);
-        mImageReader.setOnImageAvailableListener(imageReader -> {
-            try (Image image = imageReader.acquireLatestImage()) {
-
-                if (image == null)
-                    return;
-
+        // up to two images are held as framebuffers, two more are needed for acquireLatestImage()
+        mImageReader = ImageReader.newInstance(scaledWidth, scaledHeight, pixelFormat, 4);
+        mImageReader.setOnImageAvailableListener(rateLimited(onDemand(acquiredImage -> {
+            Image image = acquiredImage;
+            try {
                 final Image.Plane[] planes = image.getPlanes();
                 final ByteBuffer buffer = planes[0].getBuffer();
                 int rowStride = planes[0].getRowStride();
 
                 // if needed, set up a new VNC framebuffer that matches the actual image dimensions
-                if (scaledWidth != MainService.vncGetFramebufferWidth() || scaledHeight != MainService.vncGetFramebufferHeight())
+                if (scaledWidth != MainService.vncGetFramebufferWidth() || scaledHeight != MainService.vncGetFramebufferHeight()) {
                     MainService.vncNewFramebuffer(scaledWidth, scaledHeight);
+                    Log.d(TAG, "image listener: framebuffer now " + scaledWidth + "x" + scaledHeight + ", " + MainService.vncGetFramebufferAllocationCount() + " frame allocations so far");
+                }
 
                 buffer.rewind();
 
-                MainService.vncUpdateFramebuffer(buffer, rowStride);
+                // on success, the image is the framebuffer now and gets closed by native code once replaced
+                if (MainService.vncUpdateFramebufferFromImage(image, buffer, rowStride))
+                    image = null;
             } catch (Exception ignored) {
+            } finally {
+                if (image != null)
+                    image.close();
             }
-        }, null);
+        })), mCaptureHandler);
 
         try {
             if(mVirtualDisplay == null) {
@@ -325,16 +414,25 @@ public class MediaProjectionService extends Service {
             return;
         }
 
+        // detach again right away if there's nobody to capture for
+        mIsCaptureSuspended = false;
+        updateCaptureSuspension();
+
         // tell MainService that MediaProjection is up
         postResult(true);
     }
 
     private void stopScreenCapture() {
+        cancelPendingFrame();
+        mIsCaptureSuspended = false;
+
         if (mImageReader != null) {
             //  Important: detach image reader's surface from virtual display before closing
             if (mVirtualDisplay != null) {
                 mVirtualDisplay.setSurface(null);
             }
+            // the framebuffer might still be backed by one of the reader's images
+            MainService.vncReleaseFramebufferImage();
             mImageReader.close();
             mImageReader = null;
         }
@@ -352,6 +450,148 @@ public class MediaProjectionService extends Service {
         }
     }
 
+    /**
+     * Wraps the given listener so that it gets called at most once per mMinFrameIntervalMillis.
+     * Images arriving earlier are left queued in the reader and picked up by a deferred call,
+     * where acquireLatestImage() makes sure the latest one wins.
+     */
+    private ImageReader.OnImageAvailableListener rateLimited(ImageReader.OnImageAvailableListener listener) {
+        if (mMinFrameIntervalMillis <= 0)
+            return listener;
+
+        return imageReader -> {
+            // already a deferred call scheduled that will pick up this image
+            if (mPendingFrame != null)
+                return;
+
+            long now = SystemClock.uptimeMillis();
+            long wait = mLastFrameMillis + mMinFrameIntervalMillis - now;
+            if (wait > 0) {
+                mPendingFrame = () -> {
+                    mPendingFrame = null;
+                    mLastFrameMillis = SystemClock.uptimeMillis();
+                    listener.onImageAvailable(imageReader);
+                };
+                mCaptureHandler.postDelayed(mPendingFrame, wait);
+                return;
+            }
+
+            mLastFrameMillis = now;
+            listener.onImageAvailable(imageReader);
+        };
+    }
+
+    private void cancelPendingFrame() {
+        if (mPendingFrame != null) {
+            mCaptureHandler.removeCallbacks(mPendingFrame);
+            mPendingFrame = null;
+        }
+        releaseHeldImage();
+    }
+
+    /**
+     * Returns a listener acquiring the latest image and handing it to the given consumer, which takes
+     * ownership of it, but only if some client has an update request outstanding. Otherwise, the image
+     * is held back without copying and handed over once a client asks for an update, unless a newer
+     * one supersedes it before.
+     */
+    private ImageReader.OnImageAvailableListener onDemand(Consumer<Image> consumer) {
+        return imageReader -> {
+            // close superseded image first, the reader might not have a slot left otherwise
+            releaseHeldImage();
+
+            Image image;
+            try {
+                image = imageReader.acquireLatestImage();
+            } catch (Exception e) {
+                return;
+            }
+
+            if (image == null)
+                return;
+
+            updateQueueTimeStats(image);
+
+            if (MainService.vncIsUpdateRequested()) {
+                consumer.accept(image);
+                return;
+            }
+
+            mHeldImage = image;
+            mHeldImageCheckIntervalMillis = HELD_IMAGE_CHECK_MIN_INTERVAL_MILLIS;
+            mHeldImageCheck = new Runnable() {
+                @Override
+                public void run() {
+                    if (MainService.vncIsUpdateRequested()) {
+                        Image heldImage = mHeldImage;
+                        mHeldImage = null;
+                        mHeldImageCheck = null;
+                        consumer.accept(heldImage);
+                        return;
+                    }
+                    // back off while viewers stay idle
+                    mHeldImageCheckIntervalMillis = Math.min(2 * mHeldImageCheckIntervalMillis, HELD_IMAGE_CHECK_MAX_INTERVAL_MILLIS);
+                    mCaptureHandler.postDelayed(this, mHeldImageCheckIntervalMillis);
+                }
+            };
+            mCaptureHandler.postDelayed(mHeldImageCheck, mHeldImageCheckIntervalMillis);
+        };
+    }
+
+    /**
+     * Accounts for the time the given image spent queued between being rendered and acquired by us,
+     * logging average and maximum every QUEUE_TIME_STATS_FRAMES frames.
+     */
+    private void updateQueueTimeStats(Image image) {
+        // image timestamps of virtual displays are in the System.nanoTime() time base
+        long queueTimeNanos = System.nanoTime() - image.getTimestamp();
+        if (queueTimeNanos < 0)
+            return;
+
+        mQueueTimeSumNanos += queueTimeNanos;
+        mQueueTimeMaxNanos = Math.max(mQueueTimeMaxNanos, queueTimeNanos);
+        if (++mQueueTimeFrames == QUEUE_TIME_STATS_FRAMES) {
+            Log.d(TAG, "image listener: queue time avg " + mQueueTimeSumNanos / mQueueTimeFrames / 1000 + "us, max " + mQueueTimeMaxNanos / 1000 + "us over " + mQueueTimeFrames + " frames");
+            mQueueTimeSumNanos = 0;
+            mQueueTimeMaxNanos = 0;
+            mQueueTimeFrames = 0;
+        }
+    }
+
+    private void releaseHeldImage() {
+        if (mHeldImageCheck != null) {
+            mCaptureHandler.removeCallbacks(mHeldImageCheck);
+            mHeldImageCheck = null;
+        }
+        if (mHeldImage != null) {
+            mHeldImage.close();
+            mHeldImage = null;
+        }
+    }
+
+    /**
+     * Detaches the image reader from the virtual display while there are no clients or the screen
+     * is off, so that nothing gets rendered or copied at all, and re-attaches it otherwise.
+     */
+    private void updateCaptureSuspension() {
+        if (mVirtualDisplay == null || mImageReader == null)
+            return;
+
+        boolean isScreenOn = ((PowerManager) getSystemService(Context.POWER_SERVICE)).isInteractive();
+        boolean suspend = MainService.getClientCount() == 0 || !isScreenOn;
+        if (suspend == mIsCaptureSuspended)
+            return;
+
+        Log.d(TAG, "updateCaptureSuspension: " + (suspend ? "suspending" : "resuming") + " capture, screen on: " + isScreenOn);
+        mIsCaptureSuspended = suspend;
+        if (suspend) {
+            mVirtualDisplay.setSurface(null);
+            cancelPendingFrame();
+        } else {
+            mVirtualDisplay.setSurface(mImageReader.getSurface());
+        }
+    }
+
     private void postResult(boolean isMediaProjectionEnabled) {
         Intent intent = new Intent(this, MainService.class);
         intent.setAction(MainService.ACTION_HANDLE_MEDIA_PROJECTION_RESULT);
@@ -368,19 +608,28 @@ public class MediaProjectionService extends Service {
         return instance != null && instance.mMediaProjection != null;
     }
 
+    /**
+     * To be called when clients connect or disconnect. Can be called from any thread.
+     */
+    static void onClientCountChanged() {
+        MediaProjectionService service = instance;
+        if (service != null && !service.mIsCaptureThreadQuitting)
+            service.mCaptureHandler.post(service::updateCaptureSuspension);
+    }
+
     static void togglePortraitInLandscapeWorkaround() {
-        try {
+        MediaProjectionService service = instance;
+        if (service == null || service.mIsCaptureThreadQuitting)
+            return;
+
+        service.mCaptureHandler.post(() -> {
             // set
-            instance.mHasPortraitInLandscapeWorkaroundSet = true;
-            instance.mHasPortraitInLandscapeWorkaroundApplied = !instance.mHasPortraitInLandscapeWorkaroundApplied;
-            Log.d(TAG, "togglePortraitInLandscapeWorkaround: now " + instance.mHasPortraitInLandscapeWorkaroundApplied);
+            service.mHasPortraitInLandscapeWorkaroundSet = true;
+            service.mHasPortraitInLandscapeWorkaroundApplied = !service.mHasPortraitInLandscapeWorkaroundApplied;
+            Log.d(TAG, "togglePortraitInLandscapeWorkaround: now " + service.mHasPortraitInLandscapeWorkaroundApplied);
             // apply
-            instance.startScreenCapture();
-        }
-        catch (NullPointerException e) {
-            //unused
-        }
-
+            service.startScreenCapture();
+        });
     }
 
 }
@@ -60,6 +60,8 @@ public class OnBootReceiver extends BroadcastReceiver {
                 intent.putExtra(MainService.EXTRA_FILE_TRANSFER, prefs.getBoolean(Constants.PREFS_KEY_SETTINGS_FILE_TRANSFER, defaults.getFileTransfer()));
                 intent.putExtra(MainService.EXTRA_VIEW_ONLY, prefs.getBoolean(Constants.PREFS_KEY_SETTINGS_VIEW_ONLY, defaults.getViewOnly()));
                 intent.putExtra(MainService.EXTRA_SCALING, prefs.getFloat(Constants.PREFS_KEY_SETTINGS_SCALING, defaults.getScaling()));
+                intent.putExtra(MainService.EXTRA_MAX_FPS, prefs.getInt(Constants.PREFS_KEY_SETTINGS_MAX_FPS, defaults.getMaxFps()));
+                intent.putExtra(MainService.EXTRA_RGB565, prefs.getBoolean(Constants.PREFS_KEY_SETTINGS_RGB565, defaults.getRgb565()));
                 intent.putExtra(MainService.EXTRA_ACCESS_KEY, prefs.getString(Constants.PREFS_KEY_SETTINGS_ACCESS_KEY, defaults.getAccessKey()));
                 MainService.addFallbackScreenCaptureIfNotAppOp(context.getApplicationContext(), intent);
 
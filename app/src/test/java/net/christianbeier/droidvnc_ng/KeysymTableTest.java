@@ -0,0 +1,230 @@
+package net.christianbeier.droidvnc_ng;
+
+import android.view.KeyEvent;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks KeysymTable against the chain of keysym comparisons InputService used before.
+ */
+public class KeysymTableTest {
+
+    private static final int UNICODE_KEYSYM_OFFSET = 0x01000000;
+
+    @Test
+    public void latin1MatchesLegacyChain() {
+        for (long keysym = 0x00; keysym <= 0xff; ++keysym) {
+            assertMatchesLegacyChain(keysym);
+        }
+    }
+
+    @Test
+    public void functionKeysMatchLegacyChain() {
+        for (long keysym = 0xff00; keysym <= 0xffff; ++keysym) {
+            assertMatchesLegacyChain(keysym);
+        }
+    }
+
+    @Test
+    public void otherKeysymsHaveNoKeyCode() {
+        long[] keysyms = {-1, 0x100, 0xfeff, 0x10000, UNICODE_KEYSYM_OFFSET + 0x100, UNICODE_KEYSYM_OFFSET + 0x20ac};
+        for (long keysym : keysyms) {
+            int entry = KeysymTable.lookup(keysym);
+            assertEquals(KeyEvent.KEYCODE_UNKNOWN, KeysymTable.getKeyCode(entry));
+            assertFalse(KeysymTable.needsShift(entry));
+        }
+    }
+
+    @Test
+    public void unicodeKeysymsOfLatin1AreNormalized() {
+        for (long c = 0x00; c <= 0xff; ++c) {
+            long keysym = KeysymTable.normalize(UNICODE_KEYSYM_OFFSET + c);
+            assertEquals(c, keysym);
+            assertEquals(KeysymTable.lookup(c), KeysymTable.lookup(keysym));
+            assertEquals(c, KeysymTable.toCodePoint(keysym));
+        }
+    }
+
+    @Test
+    public void otherKeysymsAreNotNormalized() {
+        long[] keysyms = {0x41, 0xff0d, UNICODE_KEYSYM_OFFSET - 1, UNICODE_KEYSYM_OFFSET + 0x100, UNICODE_KEYSYM_OFFSET + 0x1f600};
+        for (long keysym : keysyms) {
+            assertEquals(keysym, KeysymTable.normalize(keysym));
+        }
+    }
+
+    @Test
+    public void unicodeKeysymsGiveCodePoints() {
+        assertEquals(0x20ac, KeysymTable.toCodePoint(UNICODE_KEYSYM_OFFSET + 0x20ac));
+        assertEquals(0x1f600, KeysymTable.toCodePoint(UNICODE_KEYSYM_OFFSET + 0x1f600));
+        assertEquals(0x10ffff, KeysymTable.toCodePoint(UNICODE_KEYSYM_OFFSET + 0x10ffff));
+        assertEquals(-1, KeysymTable.toCodePoint(UNICODE_KEYSYM_OFFSET + 0x110000));
+        assertEquals(-1, KeysymTable.toCodePoint(0xff0d));
+    }
+
+    private static void assertMatchesLegacyChain(long keysym) {
+        int expected = legacyLookup(keysym);
+        int entry = KeysymTable.lookup(keysym);
+        String message = "keysym 0x" + Long.toHexString(keysym);
+        assertEquals(message, expected >>> 1, KeysymTable.getKeyCode(entry));
+        assertEquals(message, (expected & 1) != 0, KeysymTable.needsShift(entry));
+    }
+
+    /**
+     * The translation InputService.onKeyEvent() did before KeysymTable, returning the key code
+     * shifted left by one with the lowest bit set if Shift is to be added.
+     */
+    private static int legacyLookup(long keysym) {
+        int keyCode = KeyEvent.KEYCODE_UNKNOWN;
+        boolean doShift = false;
+
+        //  Left/Right
+        if (keysym == 0xff51) keyCode = KeyEvent.KEYCODE_DPAD_LEFT;
+        if (keysym == 0xff53) keyCode = KeyEvent.KEYCODE_DPAD_RIGHT;
+        //  Up/Down
+        if (keysym == 0xff52) keyCode = KeyEvent.KEYCODE_DPAD_UP;
+        if (keysym == 0xff54) keyCode = KeyEvent.KEYCODE_DPAD_DOWN;
+        // Backspace/Delete
+        if (keysym == 0xff08) keyCode = KeyEvent.KEYCODE_DEL;
+        if (keysym == 0xffff) keyCode = KeyEvent.KEYCODE_FORWARD_DEL;
+        // Insert
+        if (keysym == 0xff63) keyCode = KeyEvent.KEYCODE_INSERT;
+        // Enter
+        if (keysym == 0xff0d) keyCode = KeyEvent.KEYCODE_ENTER;
+        // Tab
+        if (keysym == 0xff09) keyCode = KeyEvent.KEYCODE_TAB;
+        // PageUp/PageDown - the AccessibilityNodeInfo approach does not have this
+        if (keysym == 0xff55) keyCode = KeyEvent.KEYCODE_PAGE_UP;
+        if (keysym == 0xff56) keyCode = KeyEvent.KEYCODE_PAGE_DOWN;
+        // Function keys - the AccessibilityNodeInfo approach does not have this
+        if (keysym == 0xffbe) keyCode = KeyEvent.KEYCODE_F1;
+        if (keysym == 0xffbf) keyCode = KeyEvent.KEYCODE_F2;
+        if (keysym == 0xffc0) keyCode = KeyEvent.KEYCODE_F3;
+        if (keysym == 0xffc1) keyCode = KeyEvent.KEYCODE_F4;
+        if (keysym == 0xffc2) keyCode = KeyEvent.KEYCODE_F5;
+        if (keysym == 0xffc3) keyCode = KeyEvent.KEYCODE_F6;
+        if (keysym == 0xffc4) keyCode = KeyEvent.KEYCODE_F7;
+        if (keysym == 0xffc5) keyCode = KeyEvent.KEYCODE_F8;
+        if (keysym == 0xffc6) keyCode = KeyEvent.KEYCODE_F9;
+        if (keysym == 0xffc7) keyCode = KeyEvent.KEYCODE_F10;
+        if (keysym == 0xffc8) keyCode = KeyEvent.KEYCODE_F11;
+        if (keysym == 0xffc9) keyCode = KeyEvent.KEYCODE_F12;
+        // Numpad keys
+        if (keysym == 0xff8d) keyCode = KeyEvent.KEYCODE_NUMPAD_ENTER;
+        if (keysym == 0xffaa) keyCode = KeyEvent.KEYCODE_NUMPAD_MULTIPLY;
+        if (keysym == 0xffab) keyCode = KeyEvent.KEYCODE_NUMPAD_ADD;
+        if (keysym == 0xffac) keyCode = KeyEvent.KEYCODE_NUMPAD_COMMA;
+        if (keysym == 0xffad) keyCode = KeyEvent.KEYCODE_NUMPAD_SUBTRACT;
+        if (keysym == 0xffae) keyCode = KeyEvent.KEYCODE_NUMPAD_DOT;
+        if (keysym == 0xffaf) keyCode = KeyEvent.KEYCODE_NUMPAD_DIVIDE;
+        if (keysym == 0xffb0) keyCode = KeyEvent.KEYCODE_NUMPAD_0;
+        if (keysym == 0xffb1) keyCode = KeyEvent.KEYCODE_NUMPAD_1;
+        if (keysym == 0xffb2) keyCode = KeyEvent.KEYCODE_NUMPAD_2;
+        if (keysym == 0xffb3) keyCode = KeyEvent.KEYCODE_NUMPAD_3;
+        if (keysym == 0xffb4) keyCode = KeyEvent.KEYCODE_NUMPAD_4;
+        if (keysym == 0xffb5) keyCode = KeyEvent.KEYCODE_NUMPAD_5;
+        if (keysym == 0xffb6) keyCode = KeyEvent.KEYCODE_NUMPAD_6;
+        if (keysym == 0xffb7) keyCode = KeyEvent.KEYCODE_NUMPAD_7;
+        if (keysym == 0xffb8) keyCode = KeyEvent.KEYCODE_NUMPAD_8;
+        if (keysym == 0xffb9) keyCode = KeyEvent.KEYCODE_NUMPAD_9;
+        if (keysym == 0x20) keyCode = KeyEvent.KEYCODE_SPACE;
+        if (keysym == 0x21) { keyCode = KeyEvent.KEYCODE_1; doShift = true; } // '!' is generated by '1' w/ Shift
+        if (keysym == 0x22) { keyCode = KeyEvent.KEYCODE_APOSTROPHE; doShift = true; }// '"' is generated by ''' w/ Shift
+        if (keysym == 0x23) keyCode = KeyEvent.KEYCODE_POUND;
+        if (keysym == 0x24) { keyCode = KeyEvent.KEYCODE_4; doShift = true; } // '$' is generated by '4' w/ Shift
+        if (keysym == 0x25) { keyCode = KeyEvent.KEYCODE_5; doShift = true; } // '%' is generated by '5' w/ Shift
+        if (keysym == 0x26) { keyCode = KeyEvent.KEYCODE_7; doShift = true; } // '&' is generated by '7' w/ Shift
+        if (keysym == 0x27) keyCode = KeyEvent.KEYCODE_APOSTROPHE;
+        if (keysym == 0x28) { keyCode = KeyEvent.KEYCODE_9; doShift = true; } // '(' is generated by '9' w/ Shift
+        if (keysym == 0x29) { keyCode = KeyEvent.KEYCODE_0; doShift = true; } // ')' is generated by '0' w/ Shift
+        if (keysym == 0x2A) keyCode = KeyEvent.KEYCODE_STAR;
+        if (keysym == 0x2B) keyCode = KeyEvent.KEYCODE_PLUS;
+        if (keysym == 0x2C) keyCode = KeyEvent.KEYCODE_COMMA;
+        if (keysym == 0x2D) keyCode = KeyEvent.KEYCODE_MINUS;
+        if (keysym == 0x2E) keyCode = KeyEvent.KEYCODE_PERIOD;
+        if (keysym == 0x2F) keyCode = KeyEvent.KEYCODE_SLASH;
+        if (keysym == 0x30) keyCode = KeyEvent.KEYCODE_0;
+        if (keysym == 0x31) keyCode = KeyEvent.KEYCODE_1;
+        if (keysym == 0x32) keyCode = KeyEvent.KEYCODE_2;
+        if (keysym == 0x33) keyCode = KeyEvent.KEYCODE_3;
+        if (keysym == 0x34) keyCode = KeyEvent.KEYCODE_4;
+        if (keysym == 0x35) keyCode = KeyEvent.KEYCODE_5;
+        if (keysym == 0x36) keyCode = KeyEvent.KEYCODE_6;
+        if (keysym == 0x37) keyCode = KeyEvent.KEYCODE_7;
+        if (keysym == 0x38) keyCode = KeyEvent.KEYCODE_8;
+        if (keysym == 0x39) keyCode = KeyEvent.KEYCODE_9;
+        if (keysym == 0x3A) { keyCode = KeyEvent.KEYCODE_SEMICOLON; doShift = true; } // ':' is generated by ';' w/ Shift
+        if (keysym == 0x3B) keyCode = KeyEvent.KEYCODE_SEMICOLON;
+        if (keysym == 0x3C) { keyCode = KeyEvent.KEYCODE_COMMA; doShift = true; } // '<' is generated by ',' w/ Shift
+        if (keysym == 0x3D) keyCode = KeyEvent.KEYCODE_EQUALS;
+        if (keysym == 0x3E) { keyCode = KeyEvent.KEYCODE_PERIOD; doShift = true; } // '>' is generated by '.' w/ Shift
+        if (keysym == 0x3F) { keyCode = KeyEvent.KEYCODE_SLASH; doShift = true; } // '?' is generated by '/' w/ Shift
+        if (keysym == 0x40) keyCode = KeyEvent.KEYCODE_AT;
+        if (keysym == 0x41) { keyCode = KeyEvent.KEYCODE_A; doShift = true; } // 'A' is generated by 'a' w/ Shift
+        if (keysym == 0x42) { keyCode = KeyEvent.KEYCODE_B; doShift = true; } // 'B' is generated by 'b' w/ Shift
+        if (keysym == 0x43) { keyCode = KeyEvent.KEYCODE_C; doShift = true; } // 'C' is generated by 'c' w/ Shift
+        if (keysym == 0x44) { keyCode = KeyEvent.KEYCODE_D; doShift = true; } // 'D' is generated by 'd' w/ Shift
+        if (keysym == 0x45) { keyCode = KeyEvent.KEYCODE_E; doShift = true; } // 'E' is generated by 'e' w/ Shift
+        if (keysym == 0x46) { keyCode = KeyEvent.KEYCODE_F; doShift = true; } // 'F' is generated by 'f' w/ Shift
+        if (keysym == 0x47) { keyCode = KeyEvent.KEYCODE_G; doShift = true; } // 'G' is generated by 'g' w/ Shift
+        if (keysym == 0x48) { keyCode = KeyEvent.KEYCODE_H; doShift = true; } // 'H' is generated by 'h' w/ Shift
+        if (keysym == 0x49) { keyCode = KeyEvent.KEYCODE_I; doShift = true; } // 'I' is generated by 'i' w/ Shift
+        if (keysym == 0x4A) { keyCode = KeyEvent.KEYCODE_J; doShift = true; } // 'J' is generated by 'j' w/ Shift
+        if (keysym == 0x4B) { keyCode = KeyEvent.KEYCODE_K; doShift = true; } // 'K' is generated by 'k' w/ Shift
+        if (keysym == 0x4C) { keyCode = KeyEvent.KEYCODE_L; doShift = true; } // 'L' is generated by 'l' w/ Shift
+        if (keysym == 0x4D) { keyCode = KeyEvent.KEYCODE_M; doShift = true; } // 'M' is generated by 'm' w/ Shift
+        if (keysym == 0x4E) { keyCode = KeyEvent.KEYCODE_N; doShift = true; } // 'N' is generated by 'n' w/ Shift
+        if (keysym == 0x4F) { keyCode = KeyEvent.KEYCODE_O; doShift = true; } // 'O' is generated by 'o' w/ Shift
+        if (keysym == 0x50) { keyCode = KeyEvent.KEYCODE_P; doShift = true; } // 'P' is generated by 'p' w/ Shift
+        if (keysym == 0x51) { keyCode = KeyEvent.KEYCODE_Q; doShift = true; } // 'Q' is generated by 'q' w/ Shift
+        if (keysym == 0x52) { keyCode = KeyEvent.KEYCODE_R; doShift = true; } // 'R' is generated by 'r' w/ Shift
+        if (keysym == 0x53) { keyCode = KeyEvent.KEYCODE_S; doShift = true; } // 'S' is generated by 's' w/ Shift
+        if (keysym == 0x54) { keyCode = KeyEvent.KEYCODE_T; doShift = true; } // 'T' is generated by 't' w/ Shift
+        if (keysym == 0x55) { keyCode = KeyEvent.KEYCODE_U; doShift = true; } // 'U' is generated by 'u' w/ Shift
+        if (keysym == 0x56) { keyCode = KeyEvent.KEYCODE_V; doShift = true; } // 'V' is generated by 'v' w/ Shift
+        if (keysym == 0x57) { keyCode = KeyEvent.KEYCODE_W; doShift = true; } // 'W' is generated by 'w' w/ Shift
+        if (keysym == 0x58) { keyCode = KeyEvent.KEYCODE_X; doShift = true; } // 'X' is generated by 'x' w/ Shift
+        if (keysym == 0x59) { keyCode = KeyEvent.KEYCODE_Y; doShift = true; } // 'Y' is generated by 'y' w/ Shift
+        if (keysym == 0x5A) { keyCode = KeyEvent.KEYCODE_Z; doShift = true; } // 'Z' is generated by 'z' w/ Shift
+        if (keysym == 0x5B) keyCode = KeyEvent.KEYCODE_LEFT_BRACKET;
+        if (keysym == 0x5C) keyCode = KeyEvent.KEYCODE_BACKSLASH;
+        if (keysym == 0x5D) keyCode = KeyEvent.KEYCODE_RIGHT_BRACKET;
+        if (keysym == 0x5E) { keyCode = KeyEvent.KEYCODE_6; doShift = true; } // '^' is generated by '6' w/ Shift
+        if (keysym == 0x5F) { keyCode = KeyEvent.KEYCODE_MINUS; doShift = true; } // '_' is generated by '-' w/ Shift
+        if (keysym == 0x60) keyCode = KeyEvent.KEYCODE_GRAVE;
+        if (keysym == 0x61) keyCode = KeyEvent.KEYCODE_A;
+        if (keysym == 0x62) keyCode = KeyEvent.KEYCODE_B;
+        if (keysym == 0x63) keyCode = KeyEvent.KEYCODE_C;
+        if (keysym == 0x64) keyCode = KeyEvent.KEYCODE_D;
+        if (keysym == 0x65) keyCode = KeyEvent.KEYCODE_E;
+        if (keysym == 0x66) keyCode = KeyEvent.KEYCODE_F;
+        if (keysym == 0x67) keyCode = KeyEvent.KEYCODE_G;
+        if (keysym == 0x68) keyCode = KeyEvent.KEYCODE_H;
+        if (keysym == 0x69) keyCode = KeyEvent.KEYCODE_I;
+        if (keysym == 0x6A) keyCode = KeyEvent.KEYCODE_J;
+        if (keysym == 0x6B) keyCode = KeyEvent.KEYCODE_K;
+        if (keysym == 0x6C) keyCode = KeyEvent.KEYCODE_L;
+        if (keysym == 0x6D) keyCode = KeyEvent.KEYCODE_M;
+        if (keysym == 0x6E) keyCode = KeyEvent.KEYCODE_N;
+        if (keysym == 0x6F) keyCode = KeyEvent.KEYCODE_O;
+        if (keysym == 0x70) keyCode = KeyEvent.KEYCODE_P;
+        if (keysym == 0x71) keyCode = KeyEvent.KEYCODE_Q;
+        if (keysym == 0x72) keyCode = KeyEvent.KEYCODE_R;
+        if (keysym == 0x73) keyCode = KeyEvent.KEYCODE_S;
+        if (keysym == 0x74) keyCode = KeyEvent.KEYCODE_T;
+        if (keysym == 0x75) keyCode = KeyEvent.KEYCODE_U;
+        if (keysym == 0x76) keyCode = KeyEvent.KEYCODE_V;
+        if (keysym == 0x77) keyCode = KeyEvent.KEYCODE_W;
+        if (keysym == 0x78) keyCode = KeyEvent.KEYCODE_X;
+        if (keysym == 0x79) keyCode = KeyEvent.KEYCODE_Y;
+        if (keysym == 0x7A) keyCode = KeyEvent.KEYCODE_Z;
+        if (keysym == 0x7B) { keyCode = KeyEvent.KEYCODE_LEFT_BRACKET; doShift = true; } // '{' is generated by '[' w/ Shift
+        if (keysym == 0x7C) { keyCode = KeyEvent.KEYCODE_BACKSLASH; doShift = true; } // '|' is generated by '\' w/ Shift
+        if (keysym == 0x7D) { keyCode = KeyEvent.KEYCODE_RIGHT_BRACKET; doShift = true; } // '}' is generated by ']' w/ Shift
+        if (keysym == 0x7E) { keyCode = KeyEvent.KEYCODE_GRAVE; doShift = true; } // '~' is generated by '`' w/ Shift
+
+        return keyCode << 1 | (doShift ? 1 : 0);
+    }
+}